@@ -0,0 +1,213 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.recording.postprocessing.util.*;
+
+/**
+ * Processes many recordings in one JVM. Each subdirectory of the batch
+ * directory which contains a metadata file is submitted as a separate job
+ * to a {@link JobScheduler}, which runs up to
+ * {@link Config#MAX_CONCURRENT_JOBS} jobs at the same time on a shared set
+ * of threads, so the total number of threads (and ffmpeg threads, see
+ * {@link Config#MAX_FFMPEG_THREADS}) does not depend on the number of
+ * recordings.
+ *
+ * In watch mode, the batch directory is polled for new recordings until the
+ * process is killed.
+ *
+ * @author Boris Grozev
+ */
+public class BatchProcessing
+{
+    /**
+     * The interval in milliseconds between two scans of the batch directory
+     * in watch mode.
+     */
+    private static final long POLL_INTERVAL = 10000;
+
+    /**
+     * The time in milliseconds for which the metadata file of a recording
+     * must not have been modified before we start processing it in watch
+     * mode, so that we don't process recordings which are still being
+     * written.
+     */
+    private static final long SETTLE_TIME = 60000;
+
+    /**
+     * The directory which contains the recordings, one per subdirectory.
+     */
+    private final File batchDir;
+
+    /**
+     * The directory under which the output of each recording is saved (in a
+     * subdirectory with the same name as the recording), or <tt>null</tt> to
+     * save the output in the directory of the recording.
+     */
+    private final File outRootDir;
+
+    /**
+     * Runs the jobs.
+     */
+    private final JobScheduler scheduler;
+
+    /**
+     * The names of the recordings which have been submitted for processing.
+     */
+    private final Set<String> submitted = new HashSet<String>();
+
+    public static void main(String[] args)
+        throws IOException,
+               InterruptedException
+    {
+        String batchDir = null;
+        String outRootDir = null;
+        String resourcesDir = new File(".").getCanonicalPath() + "/";
+        boolean watch = false;
+
+        for (String arg : args)
+        {
+            if (arg.startsWith(Config.BATCH_ARG_NAME))
+                batchDir = arg.substring(Config.BATCH_ARG_NAME.length());
+            else if (arg.startsWith(Config.OUT_ARG_NAME))
+                outRootDir = arg.substring(Config.OUT_ARG_NAME.length());
+            else if (arg.startsWith(Config.RESOURCES_ARG_NAME))
+                resourcesDir
+                    = arg.substring(Config.RESOURCES_ARG_NAME.length()) + "/";
+            else if (arg.startsWith(Config.JOBS_ARG_NAME))
+                Config.MAX_CONCURRENT_JOBS
+                    = Integer.parseInt(
+                            arg.substring(Config.JOBS_ARG_NAME.length()));
+            else if (arg.equals(Config.WATCH_ARG_NAME))
+                watch = true;
+            else if (arg.startsWith(Config.RENDER_MODE_ARG_NAME))
+                Config.RENDER_MODE
+                    = "timeline".equals(
+                            arg.substring(Config.RENDER_MODE_ARG_NAME.length()))
+                        ? Config.TIMELINE_RENDER_MODE
+                        : Config.SECTIONS_RENDER_MODE;
+            else if (arg.startsWith(Config.CPUS_ARG_NAME))
+                Config.CPUS = Integer.parseInt(
+                        arg.substring(Config.CPUS_ARG_NAME.length()));
+        }
+
+        if (batchDir == null || !new File(batchDir).isDirectory())
+        {
+            System.err.println("Usage: BatchProcessing " + Config.BATCH_ARG_NAME
+                    + "<dir> [" + Config.OUT_ARG_NAME + "<dir>] ["
+                    + Config.RESOURCES_ARG_NAME + "<dir>] ["
+                    + Config.JOBS_ARG_NAME + "<n>] [" + Config.WATCH_ARG_NAME
+                    + "]");
+            return;
+        }
+
+        if (Config.AUTO_THREADS)
+            CpuBudget.configure(Config.CPUS);
+
+        new BatchProcessing(
+                new File(batchDir),
+                outRootDir == null ? null : new File(outRootDir),
+                resourcesDir)
+            .run(watch);
+    }
+
+    /**
+     * Initializes a batch.
+     * @param batchDir the directory which contains the recordings.
+     * @param outRootDir the directory under which to save the output, or
+     * <tt>null</tt> to save it in the directories of the recordings.
+     * @param resourcesDir the directory with the resources (images).
+     */
+    public BatchProcessing(File batchDir, File outRootDir, String resourcesDir)
+    {
+        this.batchDir = batchDir;
+        this.outRootDir = outRootDir;
+        this.scheduler = new JobScheduler(resourcesDir);
+    }
+
+    /**
+     * Processes the recordings in the batch directory.
+     * @param watch whether to keep looking for new recordings, instead of
+     * returning after the existing ones have been processed.
+     */
+    public void run(boolean watch)
+        throws InterruptedException
+    {
+        try
+        {
+            do
+            {
+                scan(watch);
+                if (watch)
+                    Thread.sleep(POLL_INTERVAL);
+            }
+            while (watch);
+        }
+        finally
+        {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Submits a job for each recording in the batch directory which hasn't
+     * been submitted or completed before.
+     * @param watch whether we are in watch mode, in which case recordings
+     * which may still be being written are left for a later scan.
+     */
+    private void scan(boolean watch)
+    {
+        File[] dirs = batchDir.listFiles();
+        if (dirs == null)
+        {
+            System.err.println("Failed to list " + batchDir);
+            return;
+        }
+        Arrays.sort(dirs);
+
+        for (File dir : dirs)
+        {
+            File metadata = new File(dir, Config.METADATA_FILENAME);
+            if (!dir.isDirectory()
+                    || submitted.contains(dir.getName())
+                    || !metadata.exists())
+                continue;
+
+            if (watch
+                    && System.currentTimeMillis() - metadata.lastModified()
+                        < SETTLE_TIME)
+                continue;
+
+            File outDir
+                = outRootDir == null ? dir : new File(outRootDir, dir.getName());
+            submitted.add(dir.getName());
+            if (new File(outDir, Config.DONE_FILENAME).exists())
+            {
+                System.err.println("Skipping " + dir + ", already processed.");
+                continue;
+            }
+
+            scheduler.submit(dir, outDir, JobScheduler.PRIORITY_BATCH);
+        }
+    }
+}
@@ -44,10 +44,10 @@ public class Config
     }
 
     /** Constant for the WEBM format of the output file. */
-    static final int WEBM_OUTPUT_FORMAT = 0;
+    public static final int WEBM_OUTPUT_FORMAT = 0;
 
     /** Constant for the MP4 format of the output file. */
-    static final int MP4_OUTPUT_FORMAT = 1;
+    public static final int MP4_OUTPUT_FORMAT = 1;
 
     /** The quality level that FFMPEG will use when processing the videos. */
     public static final int QUALITY_LEVEL = 8;
@@ -60,6 +60,43 @@ public class Config
      */
     static String ENDPOINTS_FILENAME = "endpoints.json";
 
+    /**
+     * The name of the file in the output directory which records the
+     * completed processing steps, so that they can be skipped if the
+     * processing is restarted.
+     */
+    static String MANIFEST_FILENAME = "jipopro.manifest";
+
+    /**
+     * The name of the file in the input directory in which the durations and
+     * other information about the video files are cached (see
+     * {@link org.jitsi.recording.postprocessing.util.ProbeCache}).
+     */
+    static String PROBE_CACHE_FILENAME = "jipopro.probe-cache";
+
+    /**
+     * Whether to skip the processing steps which are recorded as completed
+     * in the manifest (see {@link #MANIFEST_FILENAME}) and whose inputs and
+     * parameters haven't changed.
+     */
+    public static boolean RESUME = true;
+
+    /**
+     * The name of the file in the output directory which marks a job as
+     * successfully completed. Used in batch mode to skip recordings which
+     * have already been processed.
+     */
+    static String DONE_FILENAME = "jipopro.done";
+
+    /**
+     * The file in which the timings of processed sections are saved, in
+     * order to predict the processing time of sections in later runs (see
+     * {@link org.jitsi.recording.postprocessing.section.SectionCostModel}),
+     * or <tt>null</tt> to not save them.
+     */
+    public static String COST_MODEL_FILE
+        = System.getProperty("user.home") + "/.jipopro-section-costs";
+
     /** The name of the file where logs will be stored. */
     static String LOG_FILENAME = "jipopro.log";
 
@@ -69,8 +106,55 @@ public class Config
     /** Width of the output video. */
     public static int OUTPUT_WIDTH = (int) (OUTPUT_HEIGHT * 16 / 9);
 
-    /** Format of the output video. */
-    static int OUTPUT_FORMAT = MP4_OUTPUT_FORMAT;
+    /**
+     * Format of the output video. Only the timeline render mode (see
+     * {@link #TIMELINE_RENDER_MODE}) supports it, the sections are always
+     * concatenated to webm.
+     */
+    public static int OUTPUT_FORMAT = MP4_OUTPUT_FORMAT;
+
+    /**
+     * Constant for rendering each section with a separate ffmpeg process and
+     * then concatenating the sections.
+     */
+    static final int SECTIONS_RENDER_MODE = 0;
+
+    /**
+     * Constant for rendering the whole call with a single ffmpeg process.
+     */
+    static final int TIMELINE_RENDER_MODE = 1;
+
+    /** How the output video is rendered. */
+    static int RENDER_MODE = SECTIONS_RENDER_MODE;
+
+    /**
+     * Whether to encode the sections while they are being processed (see
+     * {@link org.jitsi.recording.postprocessing.video.concat.StreamingConcatStrategy}),
+     * instead of after all of them are complete.
+     */
+    public static boolean USE_STREAMING_CONCAT = true;
+
+    /**
+     * Sections longer than this (in milliseconds) are split into parts
+     * which are processed in parallel, or 0 to not split sections.
+     */
+    public static int MAX_SECTION_DURATION = 30000;
+
+    /**
+     * The minimum time (in milliseconds) for which the active speaker is
+     * shown before switching to another speaker, or 0. See
+     * {@link org.jitsi.recording.postprocessing.participant.SpeakerChangeFilter}.
+     * Disabled by default, because it changes the layout of existing
+     * recordings when they are processed again (e.g. 2000).
+     */
+    public static long MIN_SPEAKER_DWELL = 0;
+
+    /**
+     * Speakers who speak for less than this time (in milliseconds) are not
+     * shown as the active speaker, or 0. Disabled by default, like
+     * {@link #MIN_SPEAKER_DWELL} (e.g. 1000).
+     */
+    public static long MIN_SPEAKER_INTERJECTION = 0;
 
     /** Frame rate of the output video */
     public static int OUTPUT_FPS = 25;
@@ -80,6 +164,59 @@ public class Config
     
     /** The number of threads that FFMPEG will use */
     public static int FFMPEG_THREADS = 3;
+
+    /**
+     * The number of threads used by each ffmpeg process which runs on the
+     * task queue (decoding the input videos and processing the sections).
+     */
+    public static int FFMPEG_TASK_THREADS = 1;
+
+    /**
+     * The number of threads used by ffmpeg when rendering the whole call in
+     * a single process (see {@link #TIMELINE_RENDER_MODE}).
+     */
+    public static int TIMELINE_FFMPEG_THREADS = 3;
+
+    /**
+     * Whether to decode only the parts of the participants' videos which
+     * are shown (plus {@link #DECODE_MARGIN}), instead of the whole files.
+     * Files which are never shown are not decoded at all.
+     */
+    public static boolean DECODE_VISIBLE_ONLY = true;
+
+    /**
+     * The time (in milliseconds) which is decoded before and after the parts
+     * of a video which are shown, when {@link #DECODE_VISIBLE_ONLY} is set.
+     * Parts which are closer than twice this time are decoded together.
+     */
+    public static int DECODE_MARGIN = 1000;
+
+    /**
+     * Parts of participants' videos which are longer than this (in
+     * milliseconds) are split at keyframes into chunks, which are decoded in
+     * parallel, or 0 to decode each part with a single process.
+     *
+     * Each chunk is decoded separately and resampled to {@link #OUTPUT_FPS},
+     * so the number of frames of the joined file is checked (with ffprobe)
+     * against the duration of the part, and if they differ by more than a
+     * frame the part is decoded again with a single process. Disabled by
+     * default (e.g. 5 * 60 * 1000).
+     */
+    public static int DECODE_CHUNK_DURATION = 0;
+
+    /**
+     * Whether to size the thread pools and the number of ffmpeg threads
+     * automatically, from the number of CPUs available to the process (see
+     * {@link org.jitsi.recording.postprocessing.util.CpuBudget}), instead of
+     * using the values configured here.
+     */
+    public static boolean AUTO_THREADS = true;
+
+    /**
+     * The number of CPUs to use when {@link #AUTO_THREADS} is set, or 0 to
+     * detect the number of available CPUs (including cgroup quotas).
+     */
+    public static int CPUS = 0;
     
     /**
      * Number of threads Jipopro will use in order to process simultaneously
@@ -88,13 +225,76 @@ public class Config
     public static int JIPOPRO_THREADS = 3;
 
     /**
-     * Whether or not to use MKVINFO to calculate webm file duration.
+     * The maximum number of threads which the ffmpeg processes that Jipopro
+     * runs use at the same time, across all jobs. Each process counts with
+     * the number of threads which it is given with <tt>-threads</tt>. The
+     * long-running encoders used for streaming concatenation are counted
+     * separately (see {@link #MAX_ENCODER_THREADS}).
+     */
+    public static int MAX_FFMPEG_THREADS
+        = JIPOPRO_THREADS * FFMPEG_TASK_THREADS;
+
+    /**
+     * The maximum number of recordings which Jipopro processes at the same
+     * time in batch mode. The recordings share the same task queues.
+     */
+    public static int MAX_CONCURRENT_JOBS = 2;
+
+    /**
+     * The maximum number of threads which the encoders used for streaming
+     * concatenation use at the same time, across all jobs. An encoder which
+     * doesn't fit waits for another one to finish before its job starts
+     * rendering sections.
+     */
+    public static int MAX_ENCODER_THREADS
+        = MAX_CONCURRENT_JOBS * FFMPEG_THREADS;
+
+    /**
+     * The time in milliseconds after which a queued job is started before
+     * shorter jobs with the same priority, so that long recordings are not
+     * postponed indefinitely.
+     */
+    public static long MAX_JOB_WAIT = 60 * 60 * 1000;
+
+    /**
+     * The number of finished jobs whose status is kept, to be reported by
+     * the job API.
+     */
+    public static int MAX_FINISHED_JOBS = 100;
+
+    /** The port on which the job API listens (on the loopback interface). */
+    public static int HTTP_PORT = 8090;
+
+    /**
+     * Number of threads Jipopro will use in order to convert and pad the
+     * audio files.
+     */
+    public static int AUDIO_THREADS = 2;
+
+    /**
+     * Whether to read the duration of webm files directly (see
+     * {@link org.jitsi.recording.postprocessing.util.WebmReader}), instead
+     * of executing mkvinfo or ffprobe.
+     */
+    public static boolean USE_WEBM_READER = true;
+
+    /**
+     * Whether or not to use MKVINFO to calculate webm file duration, if
+     * {@link #USE_WEBM_READER} is not set.
      */
     public static boolean USE_MKVINFO = true;
 
     static final String IN_ARG_NAME = "--in=";
     static final String OUT_ARG_NAME = "--out=";
     static final String RESOURCES_ARG_NAME = "--resources=";
+    static final String RENDER_MODE_ARG_NAME = "--render-mode=";
+    static final String BATCH_ARG_NAME = "--batch=";
+    static final String WATCH_ARG_NAME = "--watch";
+    static final String JOBS_ARG_NAME = "--jobs=";
+    static final String PORT_ARG_NAME = "--port=";
+    static final String CPUS_ARG_NAME = "--cpus=";
+    static final String PLAN_ARG_NAME = "--plan=";
+    static final String EXECUTE_ARG_NAME = "--execute=";
 
     public static final boolean USE_PARTICIPANT_IMAGES = true;
 }
@@ -0,0 +1,149 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing;
+
+import java.util.*;
+
+/**
+ * A range of a participant's video file which is decoded to a separate
+ * file. When only parts of a file are shown, only those parts (see
+ * {@link Config#DECODE_MARGIN}) are decoded, each to its own file, and the
+ * participants of the sections refer to the decoded file which covers
+ * them.
+ *
+ * A long range can be split into chunks (see
+ * {@link Config#DECODE_CHUNK_DURATION}), which are decoded in parallel and
+ * then joined into the decoded file of the range.
+ *
+ * @author Boris Grozev
+ */
+public class DecodeStep
+{
+    /** The name of the video file, relative to the input directory. */
+    public final String file;
+
+    /**
+     * The offset in the video file (in milliseconds) at which decoding
+     * starts.
+     */
+    public final long start;
+
+    /** The duration (in milliseconds) of the range to decode. */
+    public final long duration;
+
+    /**
+     * Whether the range is the whole video file, in which case the file is
+     * decoded to its end regardless of {@link #duration}.
+     */
+    public final boolean wholeFile;
+
+    /**
+     * The name of the decoded file, relative to the output directory.
+     */
+    public final String decodedFile;
+
+    /**
+     * The offsets in the video file at which the chunks of the range start,
+     * in order. The first one is {@link #start}, and a range which is not
+     * split has a single chunk.
+     */
+    public final List<Long> chunks;
+
+    /**
+     * Initializes a new <tt>DecodeStep</tt>.
+     * @param file the name of the video file, relative to the input
+     * directory.
+     * @param start the offset in the file at which decoding starts.
+     * @param duration the duration of the range to decode.
+     * @param wholeFile whether the range is the whole video file.
+     * @param decodedFile the name of the decoded file, relative to the
+     * output directory.
+     */
+    public DecodeStep(String file,
+                      long start,
+                      long duration,
+                      boolean wholeFile,
+                      String decodedFile)
+    {
+        this(file, start, duration, wholeFile, decodedFile,
+             Collections.singletonList(start));
+    }
+
+    /**
+     * Initializes a new <tt>DecodeStep</tt> which is split into chunks.
+     * @param file the name of the video file, relative to the input
+     * directory.
+     * @param start the offset in the file at which decoding starts.
+     * @param duration the duration of the range to decode.
+     * @param wholeFile whether the range is the whole video file.
+     * @param decodedFile the name of the decoded file, relative to the
+     * output directory.
+     * @param chunks the offsets at which the chunks start, the first being
+     * <tt>start</tt>.
+     */
+    public DecodeStep(String file,
+                      long start,
+                      long duration,
+                      boolean wholeFile,
+                      String decodedFile,
+                      List<Long> chunks)
+    {
+        this.file = file;
+        this.start = start;
+        this.duration = duration;
+        this.wholeFile = wholeFile;
+        this.decodedFile = decodedFile;
+        this.chunks
+            = Collections.unmodifiableList(new ArrayList<Long>(chunks));
+    }
+
+    /**
+     * Returns the duration of a chunk.
+     * @param index the index of the chunk.
+     * @return the duration of the chunk in milliseconds, or -1 if the chunk
+     * is decoded to the end of the file.
+     */
+    public long getChunkDuration(int index)
+    {
+        if (index + 1 < chunks.size())
+            return chunks.get(index + 1) - chunks.get(index);
+        return wholeFile ? -1 : start + duration - chunks.get(index);
+    }
+
+    /**
+     * Checks whether a range of the video file is decoded by this step. A
+     * step of the whole file covers everything after its start.
+     * @param offset the offset in the video file of the start of the range.
+     * @param length the length of the range.
+     * @return <tt>true</tt> if the range is within this step.
+     */
+    public boolean covers(long offset, long length)
+    {
+        return start <= offset
+            && (wholeFile || offset + length <= start + duration);
+    }
+
+    @Override
+    public String toString()
+    {
+        return file + "[" + start + ", " + (start + duration) + ")";
+    }
+}
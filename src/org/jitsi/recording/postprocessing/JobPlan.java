@@ -0,0 +1,457 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.io.*;
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.participant.*;
+import org.jitsi.recording.postprocessing.section.*;
+import org.json.simple.*;
+
+/**
+ * Everything needed to process a recording without reading its metadata:
+ * the ranges of the video files to decode, the audio files to mix, the
+ * plan of the sections and the instants needed to synchronize audio and
+ * video.
+ *
+ * A plan can be saved to a JSON file, together with estimates of the cost
+ * of each step, and executed later (possibly on another host). File names
+ * in the plan file are relative to the input and output directories, so
+ * they can be different when the plan is executed.
+ *
+ * @author Boris Grozev
+ */
+public class JobPlan
+{
+    /** The version of the plan file format. */
+    private static final int VERSION = 4;
+
+    /**
+     * Rough estimate of the time (in seconds) it takes to decode a second of
+     * input video.
+     */
+    private static final double DECODE_COST = 0.1;
+
+    /**
+     * Rough estimate of the time (in seconds) it takes to convert and pad an
+     * audio file.
+     */
+    private static final double AUDIO_COST = 2;
+
+    /**
+     * Rough estimate of the time (in seconds) it takes to encode a second of
+     * output video.
+     */
+    private static final double ENCODE_COST = 0.3;
+
+    /** The ranges of the video files to decode. */
+    private final List<DecodeStep> decodeSteps;
+
+    /**
+     * The names of the audio files to mix, relative to the input directory.
+     */
+    private final List<String> audioFiles;
+
+    /**
+     * The time (in milliseconds) by which each audio file is delayed in the
+     * mix.
+     */
+    private final List<Long> audioPadding;
+
+    /**
+     * The instant of the first video, which corresponds to the start of the
+     * output video.
+     */
+    private final long firstVideoInstant;
+
+    /** The instant of the first audio file in the mix. */
+    private final long firstAudioInstant;
+
+    /** The sections. */
+    private final SectionPlan sectionPlan;
+
+    /**
+     * Initializes a new <tt>JobPlan</tt>.
+     * @param decodeSteps the ranges of the video files to decode.
+     * @param audioFiles the names of the audio files to mix, relative to the
+     * input directory.
+     * @param audioPadding the padding of each audio file in the mix.
+     * @param firstVideoInstant the instant of the first video.
+     * @param firstAudioInstant the instant of the first audio file.
+     * @param sectionPlan the sections.
+     */
+    public JobPlan(List<DecodeStep> decodeSteps,
+                   List<String> audioFiles,
+                   List<Long> audioPadding,
+                   long firstVideoInstant,
+                   long firstAudioInstant,
+                   SectionPlan sectionPlan)
+    {
+        this.decodeSteps = Collections.unmodifiableList(
+                new ArrayList<DecodeStep>(decodeSteps));
+        this.audioFiles = Collections.unmodifiableList(
+                new ArrayList<String>(audioFiles));
+        this.audioPadding = Collections.unmodifiableList(
+                new ArrayList<Long>(audioPadding));
+        this.firstVideoInstant = firstVideoInstant;
+        this.firstAudioInstant = firstAudioInstant;
+        this.sectionPlan = sectionPlan;
+    }
+
+    public List<DecodeStep> getDecodeSteps()
+    {
+        return decodeSteps;
+    }
+
+    public List<String> getAudioFiles()
+    {
+        return audioFiles;
+    }
+
+    public List<Long> getAudioPadding()
+    {
+        return audioPadding;
+    }
+
+    public long getFirstVideoInstant()
+    {
+        return firstVideoInstant;
+    }
+
+    public long getFirstAudioInstant()
+    {
+        return firstAudioInstant;
+    }
+
+    public SectionPlan getSectionPlan()
+    {
+        return sectionPlan;
+    }
+
+    /**
+     * Estimates the total processing time of this plan, i.e. the sum of the
+     * estimated times of all steps.
+     * @param costModel the model to use for the sections.
+     * @return the estimated total processing time in seconds.
+     */
+    public double estimateTotalCost(SectionCostModel costModel)
+    {
+        double cost = audioFiles.size() * AUDIO_COST
+            + sectionPlan.getDuration() / 1000d * ENCODE_COST;
+        for (DecodeStep step : decodeSteps)
+            cost += step.duration / 1000d * DECODE_COST;
+        for (SectionDescription section : sectionPlan.getSections())
+            cost += costModel.estimate(section);
+        return cost;
+    }
+
+    /**
+     * Saves this plan to a file.
+     * @param file the file.
+     * @param inDir the input directory, which is removed from the names of
+     * the participants' files.
+     * @param outDir the output directory, which is removed from the names
+     * of the participants' decoded files.
+     * @param costModel the model to use to estimate the cost of the
+     * sections.
+     */
+    @SuppressWarnings("unchecked")
+    public void write(File file,
+                      String inDir,
+                      String outDir,
+                      SectionCostModel costModel)
+        throws IOException
+    {
+        JSONObject json = new JSONObject();
+        json.put("version", VERSION);
+        json.put("firstVideoInstant", firstVideoInstant);
+        json.put("firstAudioInstant", firstAudioInstant);
+
+        JSONArray decode = new JSONArray();
+        for (DecodeStep decodeStep : decodeSteps)
+        {
+            JSONObject step = new JSONObject();
+            step.put("file", decodeStep.file);
+            step.put("start", decodeStep.start);
+            step.put("duration", decodeStep.duration);
+            step.put("wholeFile", decodeStep.wholeFile);
+            step.put("decoded", decodeStep.decodedFile);
+            JSONArray chunks = new JSONArray();
+            chunks.addAll(decodeStep.chunks);
+            step.put("chunks", chunks);
+            step.put("estimatedCost",
+                     decodeStep.duration / 1000d * DECODE_COST);
+            decode.add(step);
+        }
+        json.put("decode", decode);
+
+        JSONArray audio = new JSONArray();
+        for (int i = 0; i < audioFiles.size(); i++)
+        {
+            JSONObject step = new JSONObject();
+            step.put("file", audioFiles.get(i));
+            step.put("padding", audioPadding.get(i));
+            step.put("estimatedCost", AUDIO_COST);
+            audio.add(step);
+        }
+        json.put("audio", audio);
+
+        JSONArray sections = new JSONArray();
+        for (SectionDescription section : sectionPlan.getSections())
+            sections.add(toJSON(section, inDir, outDir, costModel));
+        json.put("sections", sections);
+
+        JSONObject concat = new JSONObject();
+        concat.put("duration", sectionPlan.getDuration());
+        concat.put("estimatedCost",
+                   sectionPlan.getDuration() / 1000d * ENCODE_COST);
+        json.put("concat", concat);
+
+        json.put("estimatedTotalCost", estimateTotalCost(costModel));
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                                               "UTF-8");
+        try
+        {
+            writer.write(json.toJSONString());
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads a plan from a file.
+     * @param file the file.
+     * @param inDir the input directory, in which the files named in the plan
+     * are.
+     * @param outDir the output directory, in which the decoded files are
+     * saved.
+     * @return the plan.
+     */
+    public static JobPlan read(File file, String inDir, String outDir)
+        throws IOException
+    {
+        Reader reader = new InputStreamReader(new FileInputStream(file),
+                                              "UTF-8");
+        Object parsed;
+        try
+        {
+            parsed = JSONValue.parse(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if (!(parsed instanceof JSONObject))
+            throw new IOException("Invalid plan file: " + file);
+        JSONObject json = (JSONObject) parsed;
+        if (getInt(json, "version") != VERSION)
+            throw new IOException("Unsupported plan version: "
+                                      + json.get("version"));
+
+        List<DecodeStep> decodeSteps = new ArrayList<DecodeStep>();
+        for (Object o : (JSONArray) json.get("decode"))
+        {
+            JSONObject step = (JSONObject) o;
+            List<Long> chunks = new ArrayList<Long>();
+            for (Object chunk : (JSONArray) step.get("chunks"))
+                chunks.add(((Number) chunk).longValue());
+            decodeSteps.add(new DecodeStep((String) step.get("file"),
+                                           getLong(step, "start"),
+                                           getLong(step, "duration"),
+                                           Boolean.TRUE.equals(
+                                               step.get("wholeFile")),
+                                           (String) step.get("decoded"),
+                                           chunks));
+        }
+
+        List<String> audioFiles = new ArrayList<String>();
+        List<Long> audioPadding = new ArrayList<Long>();
+        for (Object o : (JSONArray) json.get("audio"))
+        {
+            JSONObject step = (JSONObject) o;
+            audioFiles.add((String) step.get("file"));
+            audioPadding.add(getLong(step, "padding"));
+        }
+
+        List<SectionDescription> sections
+            = new ArrayList<SectionDescription>();
+        for (Object o : (JSONArray) json.get("sections"))
+            sections.add(sectionFromJSON((JSONObject) o, inDir, outDir));
+
+        return new JobPlan(decodeSteps,
+                           audioFiles, audioPadding,
+                           getLong(json, "firstVideoInstant"),
+                           getLong(json, "firstAudioInstant"),
+                           new SectionPlan(sections));
+    }
+
+    /**
+     * Returns a JSON representation of a section.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJSON(SectionDescription section,
+                                     String inDir,
+                                     String outDir,
+                                     SectionCostModel costModel)
+    {
+        JSONObject json = new JSONObject();
+        json.put("sequenceNumber", section.sequenceNumber);
+        json.put("start", section.startInstant);
+        json.put("end", section.endInstant);
+        json.put("estimatedCost", costModel.estimate(section));
+        json.put("large", toJSON(section.largeVideoDimension));
+
+        JSONArray small = new JSONArray();
+        for (Dimension d : section.smallVideosDimensions)
+            small.add(toJSON(d));
+        json.put("small", small);
+
+        JSONArray positions = new JSONArray();
+        for (Point2D.Double p : section.smallVideosPositions)
+        {
+            JSONArray position = new JSONArray();
+            position.add(p.x);
+            position.add(p.y);
+            positions.add(position);
+        }
+        json.put("positions", positions);
+
+        JSONArray participants = new JSONArray();
+        for (ParticipantInfo p : section.activeParticipants)
+        {
+            JSONObject participant = new JSONObject();
+            participant.put("ssrc", p.SSRC);
+            participant.put("file",
+                            p.fileName.startsWith(inDir)
+                                ? p.fileName.substring(inDir.length())
+                                : p.fileName);
+            participant.put("decoded",
+                            p.decodedFilename.startsWith(outDir)
+                                ? p.decodedFilename.substring(outDir.length())
+                                : p.decodedFilename);
+            participant.put("fileStart", p.currentVideoFileStartInstant);
+            participant.put("offset", section.getSourceOffset(p));
+            participant.put("lastActive", p.lastActiveInstant);
+            participant.put("aspectRatio", p.aspectRatio);
+            participant.put("speaking", p.isCurrentlySpeaking);
+            participant.put("username", p.username);
+            participant.put("description", p.description);
+            participant.put("disableOtherVideosOnTop",
+                            p.disableOtherVideosOnTop);
+            participants.add(participant);
+        }
+        json.put("participants", participants);
+
+        return json;
+    }
+
+    /**
+     * Creates a section from its JSON representation.
+     */
+    private static SectionDescription sectionFromJSON(JSONObject json,
+                                                      String inDir,
+                                                      String outDir)
+    {
+        List<ParticipantInfo> participants = new ArrayList<ParticipantInfo>();
+        for (Object o : (JSONArray) json.get("participants"))
+        {
+            JSONObject participant = (JSONObject) o;
+            String file = (String) participant.get("file");
+
+            ParticipantInfo p
+                = new ParticipantInfo(getLong(participant, "ssrc"));
+            p.fileName = inDir + file;
+            p.decodedFilename = outDir + participant.get("decoded");
+            p.currentVideoFileStartInstant = getInt(participant, "fileStart");
+            p.lastActiveInstant = getInt(participant, "lastActive");
+            p.aspectRatio = getInt(participant, "aspectRatio");
+            p.isCurrentlySpeaking
+                = Boolean.TRUE.equals(participant.get("speaking"));
+            p.username = (String) participant.get("username");
+            p.description = (String) participant.get("description");
+            p.disableOtherVideosOnTop
+                = Boolean.TRUE.equals(
+                        participant.get("disableOtherVideosOnTop"));
+            participants.add(p);
+        }
+
+        List<Dimension> small = new ArrayList<Dimension>();
+        for (Object o : (JSONArray) json.get("small"))
+            small.add(dimensionFromJSON((JSONArray) o));
+
+        List<Point2D.Double> positions = new ArrayList<Point2D.Double>();
+        for (Object o : (JSONArray) json.get("positions"))
+        {
+            JSONArray position = (JSONArray) o;
+            positions.add(new Point2D.Double(
+                    ((Number) position.get(0)).doubleValue(),
+                    ((Number) position.get(1)).doubleValue()));
+        }
+
+        return new SectionDescription(
+                getInt(json, "sequenceNumber"),
+                getInt(json, "start"),
+                getInt(json, "end"),
+                participants,
+                dimensionFromJSON((JSONArray) json.get("large")),
+                small,
+                positions);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONArray toJSON(Dimension d)
+    {
+        if (d == null)
+            return null;
+
+        JSONArray json = new JSONArray();
+        json.add(d.width);
+        json.add(d.height);
+        return json;
+    }
+
+    private static Dimension dimensionFromJSON(JSONArray json)
+    {
+        if (json == null)
+            return null;
+
+        return new Dimension(((Number) json.get(0)).intValue(),
+                             ((Number) json.get(1)).intValue());
+    }
+
+    private static long getLong(JSONObject json, String key)
+    {
+        return ((Number) json.get(key)).longValue();
+    }
+
+    private static int getInt(JSONObject json, String key)
+    {
+        return ((Number) json.get(key)).intValue();
+    }
+}
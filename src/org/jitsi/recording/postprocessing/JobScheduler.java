@@ -0,0 +1,403 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing;
+
+import java.io.*;
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.task.*;
+import org.json.simple.*;
+
+/**
+ * Runs {@link PostProcessing} jobs in one JVM, with admission control and
+ * fair scheduling.
+ *
+ * Up to {@link Config#MAX_CONCURRENT_JOBS} jobs run at the same time, except
+ * for urgent jobs, which are started right away. Of the queued jobs, the
+ * ones with the highest priority are started first, and among them the
+ * shortest recording (estimated by the size of its files), unless a job has
+ * been waiting for more than {@link Config#MAX_JOB_WAIT}.
+ *
+ * All jobs share the same threads (see {@link FairExecutor}), and each job
+ * has its own queue of tasks. The threads take turns between the jobs with
+ * the same priority, so a short recording is not stuck behind the tasks of
+ * a long one, and prefer the tasks of jobs with a higher priority, so an
+ * urgent job takes over the threads from the batch jobs as soon as their
+ * running tasks complete.
+ *
+ * @author Boris Grozev
+ */
+public class JobScheduler
+{
+    /** The priority of jobs which nobody is waiting for (re-renders). */
+    public static final int PRIORITY_BATCH = 0;
+
+    /** The default priority. */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * The priority of jobs which should run as soon as possible, regardless
+     * of the other jobs.
+     */
+    public static final int PRIORITY_URGENT = 2;
+
+    /** The states of a job. */
+    public enum State
+    {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    /** The threads which run the tasks of all jobs. */
+    private final FairExecutor taskQueue
+        = new FairExecutor("jipopro-task", Config.JIPOPRO_THREADS);
+
+    /** The threads which run the audio tasks of all jobs. */
+    private final FairExecutor audioTaskQueue
+        = new FairExecutor("jipopro-audio", Config.AUDIO_THREADS);
+
+    /** The directory with the resources (images). */
+    private final String resourcesDir;
+
+    /**
+     * The jobs which have been submitted, by ID. Only the last
+     * {@link Config#MAX_FINISHED_JOBS} finished jobs are kept.
+     */
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+    /** The jobs which have finished, in the order in which they finished. */
+    private final List<Job> finished = new LinkedList<Job>();
+
+    /** The jobs which have been submitted and not started yet. */
+    private final List<Job> waiting = new LinkedList<Job>();
+
+    /** The number of jobs which are running. */
+    private int running = 0;
+
+    /** The ID to assign to the next job. */
+    private int nextId = 1;
+
+    /**
+     * Initializes a new <tt>JobScheduler</tt>.
+     * @param resourcesDir the directory with the resources (images).
+     */
+    public JobScheduler(String resourcesDir)
+    {
+        this.resourcesDir = resourcesDir;
+    }
+
+    /**
+     * Submits a job which processes a recording.
+     * @param inDir the directory of the recording.
+     * @param outDir the directory where to save the output.
+     * @param priority the priority of the job.
+     * @return the job.
+     */
+    public synchronized Job submit(File inDir, File outDir, int priority)
+    {
+        Job job = new Job(Integer.toString(nextId++), inDir, outDir, priority);
+        jobs.put(job.id, job);
+        waiting.add(job);
+        System.err.println("Queued job " + job.id + ": " + inDir);
+
+        startJobs();
+        return job;
+    }
+
+    /**
+     * Returns a job.
+     * @param id the ID of the job.
+     * @return the job with ID <tt>id</tt>, or <tt>null</tt>.
+     */
+    public synchronized Job getJob(String id)
+    {
+        return jobs.get(id);
+    }
+
+    /**
+     * Returns the jobs which have been submitted (except for the ones which
+     * finished long ago), in the order in which they were submitted.
+     * @return the jobs.
+     */
+    public synchronized List<Job> getJobs()
+    {
+        return new ArrayList<Job>(jobs.values());
+    }
+
+    /**
+     * Cancels a job. A queued job is not started, and a running job stops
+     * after its running tasks complete.
+     * @param id the ID of the job.
+     * @return the job, or <tt>null</tt> if there is no such job, or it has
+     * already completed.
+     */
+    public synchronized Job cancel(String id)
+    {
+        Job job = jobs.get(id);
+        if (job == null)
+            return null;
+
+        if (job.state == State.QUEUED)
+        {
+            waiting.remove(job);
+            job.state = State.CANCELLED;
+            job.finished = System.currentTimeMillis();
+            pruneFinished(job);
+            notifyAll();
+            return job;
+        }
+        else if (job.state == State.RUNNING)
+        {
+            job.processing.cancel();
+            return job;
+        }
+
+        return null;
+    }
+
+    /**
+     * Blocks until all submitted jobs have completed.
+     */
+    public synchronized void awaitIdle()
+        throws InterruptedException
+    {
+        while (running > 0 || !waiting.isEmpty())
+            wait();
+    }
+
+    /**
+     * Stops the threads used by this scheduler, after the running jobs
+     * complete.
+     */
+    public void shutdown()
+        throws InterruptedException
+    {
+        awaitIdle();
+        taskQueue.shutdown();
+        audioTaskQueue.shutdown();
+    }
+
+    /**
+     * Starts as many of the waiting jobs as allowed.
+     */
+    private void startJobs()
+    {
+        while (!waiting.isEmpty())
+        {
+            Job next = null;
+            long now = System.currentTimeMillis();
+            for (Job job : waiting)
+            {
+                if (next == null || job.priority > next.priority)
+                    next = job;
+                else if (job.priority == next.priority)
+                {
+                    boolean jobExpired
+                        = now - job.submitted > Config.MAX_JOB_WAIT;
+                    boolean nextExpired
+                        = now - next.submitted > Config.MAX_JOB_WAIT;
+
+                    // Jobs which have waited for too long go first (in the
+                    // order of submission), then the shortest ones.
+                    if (jobExpired && !nextExpired
+                            || (jobExpired == nextExpired && !jobExpired
+                                && job.size < next.size))
+                        next = job;
+                }
+            }
+
+            if (running >= Config.MAX_CONCURRENT_JOBS
+                    && next.priority < PRIORITY_URGENT)
+                break;
+
+            waiting.remove(next);
+            start(next);
+        }
+    }
+
+    /**
+     * Starts a job on a new thread. The thread only waits for the tasks of
+     * the job, which run on the shared threads.
+     * @param job the job to start.
+     */
+    private void start(final Job job)
+    {
+        running++;
+        job.state = State.RUNNING;
+        job.started = System.currentTimeMillis();
+
+        final FairExecutor.JobQueue jobTaskQueue
+            = taskQueue.newQueue("job " + job.id, job.priority);
+        final FairExecutor.JobQueue jobAudioTaskQueue
+            = audioTaskQueue.newQueue("job " + job.id, job.priority);
+        job.processing = new PostProcessing(job.inDir.getPath() + "/",
+                                            job.outDir.getPath() + "/",
+                                            resourcesDir,
+                                            jobTaskQueue,
+                                            jobAudioTaskQueue);
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                System.err.println("Processing job " + job.id + ": "
+                                       + job.inDir);
+                boolean success = false;
+                try
+                {
+                    if (!job.outDir.isDirectory() && !job.outDir.mkdirs())
+                        throw new IOException("Failed to create " + job.outDir);
+
+                    success = job.processing.run();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    jobTaskQueue.close();
+                    jobAudioTaskQueue.close();
+                }
+
+                System.err.println((success ? "Finished" : "Failed")
+                                       + " job " + job.id + ": " + job.inDir);
+                jobFinished(job, success);
+            }
+        }, "jipopro-job-" + job.id).start();
+    }
+
+    /**
+     * Records that a job has finished and starts the next ones.
+     * @param job the job which finished.
+     * @param success whether the job was successful.
+     */
+    private synchronized void jobFinished(Job job, boolean success)
+    {
+        job.finished = System.currentTimeMillis();
+        job.state
+            = success
+                ? State.SUCCEEDED
+                : job.processing.isCancelled() ? State.CANCELLED : State.FAILED;
+        // The processing holds the plan and the task graph of the job, which
+        // are not needed for its status.
+        job.processing = null;
+        running--;
+        pruneFinished(job);
+
+        startJobs();
+        notifyAll();
+    }
+
+    /**
+     * Records that a job has finished, and forgets the jobs which finished
+     * before the last {@link Config#MAX_FINISHED_JOBS}, so that a
+     * long-running server doesn't accumulate them.
+     * @param job the job which finished.
+     */
+    private void pruneFinished(Job job)
+    {
+        finished.add(job);
+        while (finished.size() > Config.MAX_FINISHED_JOBS)
+            jobs.remove(finished.remove(0).id);
+    }
+
+    /**
+     * Returns the total size of the files in a directory, which we use as an
+     * estimate of the length of the recording in it.
+     * @param dir the directory.
+     * @return the total size of the files in <tt>dir</tt>, in bytes.
+     */
+    private static long getSize(File dir)
+    {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * A job which processes a single recording.
+     */
+    public static class Job
+    {
+        private final String id;
+        private final File inDir;
+        private final File outDir;
+        private final int priority;
+
+        /** The estimated size of the job (see {@link #getSize(File)}). */
+        private final long size;
+
+        private final long submitted = System.currentTimeMillis();
+        private volatile long started = -1;
+        private volatile long finished = -1;
+        private volatile State state = State.QUEUED;
+
+        /** The processing of the recording, while the job is running. */
+        private volatile PostProcessing processing;
+
+        private Job(String id, File inDir, File outDir, int priority)
+        {
+            this.id = id;
+            this.inDir = inDir;
+            this.outDir = outDir;
+            this.priority = priority;
+            this.size = getSize(inDir);
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public State getState()
+        {
+            return state;
+        }
+
+        /**
+         * Returns a JSON description of the status of this job.
+         * @return a JSON description of the status of this job.
+         */
+        @SuppressWarnings("unchecked")
+        public JSONObject toJSON()
+        {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("in", inDir.getPath());
+            json.put("out", outDir.getPath());
+            json.put("priority", priority);
+            json.put("state", state.toString());
+            json.put("submitted", submitted);
+            if (started != -1)
+                json.put("started", started);
+            if (finished != -1)
+                json.put("finished", finished);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import com.sun.net.httpserver.*;
+import org.jitsi.recording.postprocessing.util.*;
+import org.json.simple.*;
+
+/**
+ * A small HTTP server (listening on the loopback interface only) which
+ * allows recordings to be submitted for processing, and the jobs to be
+ * queried and cancelled. The jobs are run by a {@link JobScheduler}.
+ *
+ * <tt>POST /jobs?in=DIR[&out=DIR][&priority=batch|normal|urgent]</tt>
+ * submits a recording; <tt>GET /jobs</tt> lists all jobs;
+ * <tt>GET /jobs/ID</tt> returns the status of a job;
+ * <tt>DELETE /jobs/ID</tt> cancels a job. All responses are in JSON.
+ *
+ * @author Boris Grozev
+ */
+public class JobServer
+    implements HttpHandler
+{
+    private static final String JOBS_PATH = "/jobs";
+
+    /** Runs the submitted jobs. */
+    private final JobScheduler scheduler;
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        String resourcesDir = new File(".").getCanonicalPath() + "/";
+        int port = Config.HTTP_PORT;
+
+        for (String arg : args)
+        {
+            if (arg.startsWith(Config.PORT_ARG_NAME))
+                port = Integer.parseInt(
+                        arg.substring(Config.PORT_ARG_NAME.length()));
+            else if (arg.startsWith(Config.RESOURCES_ARG_NAME))
+                resourcesDir
+                    = arg.substring(Config.RESOURCES_ARG_NAME.length()) + "/";
+            else if (arg.startsWith(Config.JOBS_ARG_NAME))
+                Config.MAX_CONCURRENT_JOBS
+                    = Integer.parseInt(
+                            arg.substring(Config.JOBS_ARG_NAME.length()));
+            else if (arg.startsWith(Config.CPUS_ARG_NAME))
+                Config.CPUS = Integer.parseInt(
+                        arg.substring(Config.CPUS_ARG_NAME.length()));
+        }
+
+        if (Config.AUTO_THREADS)
+            CpuBudget.configure(Config.CPUS);
+
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getByName(null), port), 0);
+        server.createContext(JOBS_PATH,
+                             new JobServer(new JobScheduler(resourcesDir)));
+        server.start();
+        System.err.println("Listening on "  + server.getAddress());
+    }
+
+    /**
+     * Initializes a new <tt>JobServer</tt>.
+     * @param scheduler the scheduler which runs the jobs.
+     */
+    public JobServer(JobScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange)
+        throws IOException
+    {
+        try
+        {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String id = null;
+            if (path.startsWith(JOBS_PATH + "/"))
+                id = path.substring(JOBS_PATH.length() + 1);
+            else if (!path.equals(JOBS_PATH))
+            {
+                respond(exchange, 404, error("Not found"));
+                return;
+            }
+
+            if (id == null && "GET".equals(method))
+                respond(exchange, 200, listJobs());
+            else if (id == null && "POST".equals(method))
+                submit(exchange);
+            else if (id != null && "GET".equals(method))
+            {
+                JobScheduler.Job job = scheduler.getJob(id);
+                if (job == null)
+                    respond(exchange, 404, error("No such job: " + id));
+                else
+                    respond(exchange, 200, job.toJSON());
+            }
+            else if (id != null && "DELETE".equals(method))
+            {
+                // A cancelled job may be pruned before it is described.
+                JobScheduler.Job job = scheduler.cancel(id);
+                if (job == null)
+                    respond(exchange, 404,
+                            error("No such job, or already completed: " + id));
+                else
+                    respond(exchange, 200, job.toJSON());
+            }
+            else
+                respond(exchange, 405, error("Method not allowed"));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            respond(exchange, 500, error(e.toString()));
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Handles a request to submit a job.
+     * @param exchange the HTTP exchange.
+     */
+    private void submit(HttpExchange exchange)
+        throws IOException
+    {
+        Map<String, String> params
+            = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        String in = params.get("in");
+        if (in == null
+                || !new File(in, Config.METADATA_FILENAME).exists())
+        {
+            respond(exchange, 400,
+                    error("Parameter 'in' must be a directory with a "
+                              + Config.METADATA_FILENAME));
+            return;
+        }
+        String out = params.get("out");
+
+        int priority = JobScheduler.PRIORITY_NORMAL;
+        String priorityStr = params.get("priority");
+        if ("batch".equals(priorityStr))
+            priority = JobScheduler.PRIORITY_BATCH;
+        else if ("urgent".equals(priorityStr))
+            priority = JobScheduler.PRIORITY_URGENT;
+        else if (priorityStr != null && !"normal".equals(priorityStr))
+        {
+            respond(exchange, 400, error("Invalid priority: " + priorityStr));
+            return;
+        }
+
+        JobScheduler.Job job
+            = scheduler.submit(new File(in),
+                               new File(out == null ? in : out),
+                               priority);
+        respond(exchange, 200, job.toJSON());
+    }
+
+    /**
+     * Returns a JSON array with the status of all jobs.
+     */
+    @SuppressWarnings("unchecked")
+    private JSONArray listJobs()
+    {
+        JSONArray array = new JSONArray();
+        for (JobScheduler.Job job : scheduler.getJobs())
+            array.add(job.toJSON());
+        return array;
+    }
+
+    /**
+     * Returns a JSON object describing an error.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject error(String message)
+    {
+        JSONObject json = new JSONObject();
+        json.put("error", message);
+        return json;
+    }
+
+    /**
+     * Sends a JSON response.
+     * @param exchange the HTTP exchange.
+     * @param code the HTTP status code.
+     * @param json the body of the response.
+     */
+    private static void respond(HttpExchange exchange,
+                                int code,
+                                JSONAware json)
+        throws IOException
+    {
+        byte[] body = (json.toJSONString() + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Parses the parameters in the query part of a URI.
+     * @param query the raw query, or <tt>null</tt>.
+     * @return a map between the names of the parameters and their values.
+     */
+    private static Map<String, String> parseQuery(String query)
+        throws UnsupportedEncodingException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+
+        for (String param : query.split("&"))
+        {
+            int i = param.indexOf('=');
+            if (i <= 0)
+                continue;
+            params.put(URLDecoder.decode(param.substring(0, i), "UTF-8"),
+                       URLDecoder.decode(param.substring(i + 1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import org.jitsi.recording.postprocessing.util.*;
+import org.jitsi.service.neomedia.recording.*;
+import org.json.simple.*;
+
+/**
+ * Compares the time and memory it takes to read a large metadata file with
+ * {@link MetadataReader} and by parsing the whole file with
+ * <tt>JSONValue</tt> (the way it used to be read).
+ *
+ * The metadata is synthetic: a number of participants join, and the rest of
+ * the events are speaker changes. Run with
+ * <tt>java ... MetadataBenchmark [events] [file]</tt>.
+ *
+ * @author Boris Grozev
+ */
+public class MetadataBenchmark
+{
+    /** The number of events in the synthetic metadata, by default. */
+    private static final int DEFAULT_EVENTS = 100000;
+
+    /** The number of participants in the synthetic metadata. */
+    private static final int PARTICIPANTS = 50;
+
+    /** The number of times each reader is run before it is measured. */
+    private static final int WARMUP_RUNS = 2;
+
+    /** The number of measured runs of each reader. */
+    private static final int RUNS = 5;
+
+    /** Orders events by instant. */
+    private static final Comparator<RecorderEvent> INSTANT_COMPARATOR
+        = new Comparator<RecorderEvent>()
+        {
+            @Override
+            public int compare(RecorderEvent o1, RecorderEvent o2)
+            {
+                long i1 = o1.getInstant(), i2 = o2.getInstant();
+                return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+            }
+        };
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        int events = args.length > 0
+            ? Integer.parseInt(args[0])
+            : DEFAULT_EVENTS;
+        File file;
+        if (args.length > 1)
+            file = new File(args[1]);
+        else
+        {
+            file = File.createTempFile("metadata", ".json");
+            file.deleteOnExit();
+        }
+
+        generate(file, events);
+        System.err.println("Generated " + events + " events in " + file
+                               + " (" + file.length() / 1024 + " KB)");
+
+        Benchmark[] benchmarks = new Benchmark[]
+        {
+            new Benchmark("JSONValue")
+            {
+                @Override
+                int read(File file)
+                    throws Exception
+                {
+                    return readWithJSONValue(file).size();
+                }
+            },
+            new Benchmark("MetadataReader")
+            {
+                @Override
+                int read(File file)
+                    throws Exception
+                {
+                    return readWithMetadataReader(file).size();
+                }
+            },
+            new Benchmark("MetadataReader + EventTimeline")
+            {
+                @Override
+                int read(File file)
+                    throws Exception
+                {
+                    return readIntoTimeline(file).size();
+                }
+            }
+        };
+
+        for (int i = 0; i < WARMUP_RUNS; i++)
+        {
+            for (Benchmark benchmark : benchmarks)
+                benchmark.read(file);
+        }
+        for (Benchmark benchmark : benchmarks)
+            measure(benchmark, file);
+    }
+
+    /**
+     * A way of reading the events of a metadata file.
+     */
+    private static abstract class Benchmark
+    {
+        private final String name;
+
+        private Benchmark(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Reads the video events from a file, ordered by instant.
+         * @return the number of events read.
+         */
+        abstract int read(File file)
+            throws Exception;
+    }
+
+    /**
+     * Reads a file several times with one of the readers, and prints the
+     * average time and the peak heap usage.
+     */
+    private static void measure(Benchmark benchmark, File file)
+        throws Exception
+    {
+        long time = 0, peak = 0;
+        int count = 0;
+        for (int i = 0; i < RUNS; i++)
+        {
+            System.gc();
+            List<MemoryPoolMXBean> pools = getHeapPools();
+            long before = 0;
+            for (MemoryPoolMXBean pool : pools)
+            {
+                pool.resetPeakUsage();
+                before += pool.getUsage().getUsed();
+            }
+
+            long start = System.nanoTime();
+            count = benchmark.read(file);
+            time += System.nanoTime() - start;
+
+            long runPeak = 0;
+            for (MemoryPoolMXBean pool : pools)
+                runPeak += pool.getPeakUsage().getUsed();
+            peak = Math.max(peak, runPeak - before);
+        }
+
+        System.err.println(benchmark.name + ": " + count + " events in "
+                               + time / RUNS / 1000000 + " ms on average,"
+                               + " peak heap growth "
+                               + peak / (1024 * 1024) + " MB");
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools()
+    {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                pools.add(pool);
+        }
+        return pools;
+    }
+
+    /**
+     * Reads the video events the way they used to be read: the whole file
+     * into a string, then into JSON objects, then into a linked list.
+     */
+    private static List<RecorderEvent> readWithJSONValue(File file)
+        throws IOException
+    {
+        Scanner scanner = new Scanner(file);
+        String metadataString = scanner.useDelimiter("\\Z").next();
+        scanner.close();
+
+        JSONObject json = (JSONObject) JSONValue.parse(metadataString);
+        List<RecorderEvent> events = new LinkedList<RecorderEvent>();
+        for (Object o : (JSONArray) json.get("video"))
+            events.add(new RecorderEvent((JSONObject) o));
+        Collections.sort(events, INSTANT_COMPARATOR);
+        return events;
+    }
+
+    /**
+     * Reads the video events with {@link MetadataReader}.
+     */
+    private static List<RecorderEvent> readWithMetadataReader(File file)
+        throws Exception
+    {
+        final List<RecorderEvent> events = new ArrayList<RecorderEvent>();
+        MetadataReader.read(file, new MetadataReader.Handler()
+        {
+            @Override
+            public void handleSection(String section)
+            {
+            }
+
+            @Override
+            public void handleEvent(String section, RecorderEvent event)
+            {
+                if ("video".equals(section))
+                    events.add(event);
+            }
+        });
+        Collections.sort(events, INSTANT_COMPARATOR);
+        return events;
+    }
+
+    /**
+     * Reads the video events with {@link MetadataReader} into an
+     * {@link EventTimeline}.
+     */
+    private static EventTimeline readIntoTimeline(File file)
+        throws Exception
+    {
+        final EventTimeline events = new EventTimeline();
+        MetadataReader.read(file, new MetadataReader.Handler()
+        {
+            @Override
+            public void handleSection(String section)
+            {
+            }
+
+            @Override
+            public void handleEvent(String section, RecorderEvent event)
+            {
+                if ("video".equals(section))
+                    events.add(event);
+            }
+        });
+        events.sort();
+        return events;
+    }
+
+    /**
+     * Writes a synthetic metadata file.
+     * @param file the file.
+     * @param events the number of video events.
+     */
+    private static void generate(File file, int events)
+        throws IOException
+    {
+        Random random = new Random(0);
+        Writer writer
+            = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try
+        {
+            writer.write("{\"video\":[\n");
+            long instant = 1000000;
+            for (int i = 0; i < events; i++)
+            {
+                int ssrc = i < PARTICIPANTS ? i : random.nextInt(PARTICIPANTS);
+                instant += 100 + random.nextInt(2000);
+                if (i > 0)
+                    writer.write(",\n");
+                if (i < PARTICIPANTS)
+                {
+                    writer.write("{\"instant\":" + instant
+                        + ",\"type\":\"RECORDING_STARTED\""
+                        + ",\"mediaType\":\"video\""
+                        + ",\"ssrc\":" + ssrc
+                        + ",\"filename\":\"" + ssrc + ".webm\""
+                        + ",\"aspectRatio\":\"16_9\""
+                        + ",\"endpointId\":\"endpoint" + ssrc + "\"}");
+                }
+                else
+                {
+                    writer.write("{\"instant\":" + instant
+                        + ",\"type\":\"SPEAKER_CHANGED\""
+                        + ",\"mediaType\":\"video\""
+                        + ",\"ssrc\":" + ssrc
+                        + ",\"audioSsrc\":" + (ssrc + 1000) + "}");
+                }
+            }
+            writer.write("\n],\"audio\":[\n");
+            for (int i = 0; i < PARTICIPANTS; i++)
+            {
+                if (i > 0)
+                    writer.write(",\n");
+                writer.write("{\"instant\":" + (1000000 + i)
+                    + ",\"type\":\"RECORDING_STARTED\""
+                    + ",\"mediaType\":\"audio\""
+                    + ",\"ssrc\":" + (i + 1000)
+                    + ",\"filename\":\"" + (i + 1000) + ".mp3\"}");
+            }
+            writer.write("\n]}\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing;
+
+import java.io.*;
+
+import org.jitsi.service.neomedia.recording.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/**
+ * Reads the events from a metadata file without loading the whole file in
+ * memory. The file is a JSON object, which maps the name of a section
+ * (e.g. "video" or "audio") to an array of events. The events are passed
+ * to a {@link Handler} as soon as they have been read.
+ *
+ * Only one event is held in a JSON object at a time, and that object is
+ * reused for all events.
+ *
+ * @author Boris Grozev
+ */
+public class MetadataReader
+    implements ContentHandler
+{
+    /**
+     * Receives the events from a <tt>MetadataReader</tt>.
+     */
+    public interface Handler
+    {
+        /**
+         * Notifies this handler that a section (an array of events) starts.
+         * @param section the name of the section.
+         */
+        void handleSection(String section);
+
+        /**
+         * Handles an event.
+         * @param section the name of the section of the event.
+         * @param event the event.
+         */
+        void handleEvent(String section, RecorderEvent event);
+    }
+
+    /**
+     * The nesting level of the events (inside the top-level object and the
+     * array of a section).
+     */
+    private static final int EVENT_LEVEL = 3;
+
+    private final Handler handler;
+
+    /**
+     * The fields of the event which is being read.
+     */
+    private final JSONObject eventJson = new JSONObject();
+
+    /**
+     * The number of objects and arrays which the parser is in.
+     */
+    private int level = 0;
+
+    /**
+     * The name of the current section.
+     */
+    private String section;
+
+    /**
+     * Whether the parser is in the array of a section, which has been
+     * passed to {@link Handler#handleSection(String)}. Sections which are
+     * not arrays have no events.
+     */
+    private boolean inSection = false;
+
+    /**
+     * The name of the current field of the event which is being read, or
+     * <tt>null</tt>.
+     */
+    private String key;
+
+    /**
+     * Reads the events from a metadata file.
+     * @param file the file.
+     * @param handler the handler to pass the events to.
+     * @throws IOException if the file can not be read.
+     * @throws ParseException if the file is not valid JSON.
+     */
+    public static void read(File file, Handler handler)
+        throws IOException,
+               ParseException
+    {
+        Reader reader
+            = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"),
+                    64 * 1024);
+        try
+        {
+            new JSONParser().parse(reader, new MetadataReader(handler));
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private MetadataReader(Handler handler)
+    {
+        this.handler = handler;
+    }
+
+    @Override
+    public void startJSON()
+    {
+    }
+
+    @Override
+    public void endJSON()
+    {
+    }
+
+    @Override
+    public boolean startObject()
+    {
+        level++;
+        if (level == EVENT_LEVEL)
+            eventJson.clear();
+        return true;
+    }
+
+    @Override
+    public boolean endObject()
+    {
+        if (level == EVENT_LEVEL && inSection)
+            handler.handleEvent(section, new RecorderEvent(eventJson));
+        level--;
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key)
+    {
+        if (level == 1)
+            section = key;
+        else if (level == EVENT_LEVEL)
+            this.key = key;
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry()
+    {
+        if (level == EVENT_LEVEL)
+            key = null;
+        return true;
+    }
+
+    @Override
+    public boolean startArray()
+    {
+        level++;
+        if (level == 2 && section != null)
+        {
+            handler.handleSection(section);
+            inSection = true;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endArray()
+    {
+        if (level == 2)
+            inSection = false;
+        level--;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean primitive(Object value)
+    {
+        // Values nested deeper than the fields of an event are ignored.
+        if (level == EVENT_LEVEL && key != null)
+            eventJson.put(key, value);
+        return true;
+    }
+}
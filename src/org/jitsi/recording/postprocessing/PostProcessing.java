@@ -28,11 +28,14 @@ import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.recording.*;
 import org.jitsi.service.neomedia.recording.RecorderEvent.*;
 import org.jitsi.recording.postprocessing.section.*;
+import org.jitsi.recording.postprocessing.task.*;
 import org.jitsi.recording.postprocessing.util.*;
 import org.jitsi.recording.postprocessing.video.concat.*;
+import org.jitsi.recording.postprocessing.exception.*;
 import org.jitsi.recording.postprocessing.layout.*;
 import org.jitsi.recording.postprocessing.participant.*;
 import org.json.simple.*;
+import org.json.simple.parser.*;
 
 /**
  * A unit that processes videos recorded by the video recorder. It reads a
@@ -56,76 +59,109 @@ public class PostProcessing
     private static final int MINIMUM_SECTION_DURATION = 50;
 
     /**
-     * The length of video trimming result is usually bigger than the section
-     * we wanted to get. This leads to error accumulation that we store in
-     * this variable in order to later compensate it
+     * An instance that determines how the active participants should be
+     * placed in the output video.
      */
-    private static int videoDurationError = 0;
+    private final LayoutStrategy layoutStrategy
+            = new SmallVideosOverLargeVideoLayoutStrategy();
     
     /**
-     * We need to fade in only videos of participants that join the call
-     * after the recording has started.
+     * An instance that takes care of concatenating the video files that are
+     * stored in a specific directory.
      */
-    private static boolean hasProcessedEvents = false;
+    private final ConcatStrategy concatStrategy
+            = Config.USE_STREAMING_CONCAT
+                ? new StreamingConcatStrategy()
+                : new SimpleConcatStrategy();
     
     /**
-     * A list of participants that are currently shown.
+     * Predicts the processing time of the sections, so that the longest
+     * ones can be started first.
      */
-    private static List<ParticipantInfo> activeParticipants;
-    
+    private final SectionCostModel costModel = SectionCostModel.getInstance();
+
     /**
-     * An instance that determines how the active participants should be
-     * placed in the output video.
+     * The executor responsible for running the tasks of this job (decoding
+     * the input video files into MJPEG files, processing the separate call
+     * sections, mixing the audio, etc). The underlying task queue may be
+     * shared with other jobs.
      */
-    private static final LayoutStrategy layoutStrategy
-            = new SmallVideosOverLargeVideoLayoutStrategy();
-    
+    private final Executor taskQueue;
+
     /**
-     * An instance that takes care of concatenating the video files that are
-     * stored in a specific directory.
+     * The executor responsible for converting and padding the audio files.
+     * It is separate from {@link #taskQueue}, so that the audio can be
+     * processed concurrently with the video with a bounded number of
+     * threads.
      */
-    private static final ConcatStrategy concatStrategy
-            = new SimpleConcatStrategy();
-    
+    private final Executor audioTaskQueue;
+
     /**
-     * An instance that determines which participants are currently active
-     * and what is their order in the list of small videos
+     * The graph which schedules the tasks on {@link #taskQueue} according to
+     * the dependencies between them.
      */
-    private static ActiveParticipantsManager activeParticipantsManager =
-        new WithSpeakerInVideosListParticipantsManager();
+    private final TaskGraph taskGraph;
 
     /**
-     * A task queue responsible for decoding the input video files into MJPEG
-     * files.
+     * Records the completed processing steps, so that they can be skipped
+     * when the processing is restarted.
      */
-    private static ExecutorService decodingTaskQueue =
-        Executors.newFixedThreadPool(Config.JIPOPRO_THREADS);
-    
+    private JobManifest manifest;
+
+    /**
+     * Caches the durations of the video files, so that they aren't probed
+     * again when the recording is processed again.
+     */
+    private ProbeCache probeCache;
+
+    /**
+     * The fingerprint of the inputs of the audio mix.
+     */
+    private String audioFingerprint;
+
     /**
-     * A task queue responsible for processing the separate call sections.
+     * The writer for the log file of this job, or <tt>null</tt>.
      */
-    private static ExecutorService sectionProcessingTaskQueue =
-            Executors.newFixedThreadPool(Config.JIPOPRO_THREADS);
+    private FileWriter logWriter;
 
     /**
      * The time processing has started.
      */
-    private static long processingStarted;
+    private long processingStarted;
 
-    private static String inDir;
-    private static String outDir;
-    private static String resourcesDir;
+    private final String inDir;
+    private final String outDir;
+    private final String resourcesDir;
 
-    private static long lastTime = -1;
-    private static List<String> timings = new LinkedList<String>();
+    /**
+     * The file in which to save the plan of the processing, or
+     * <tt>null</tt>.
+     */
+    private File planOutputFile;
+
+    /**
+     * The file from which to read the plan of the processing instead of
+     * creating it from the metadata, or <tt>null</tt>.
+     */
+    private File planInputFile;
+
+    /**
+     * Whether to stop after planning, without processing anything.
+     */
+    private boolean dryRun = false;
+
+    private long lastTime = -1;
+    private List<String> timings = new LinkedList<String>();
 
     public static void main(String[] args)
         throws IOException,
                InterruptedException
     {
-        inDir = new java.io.File( "." ).getCanonicalPath() + "/";
-        outDir = inDir;
-        resourcesDir = inDir;
+        String inDir = new java.io.File( "." ).getCanonicalPath() + "/";
+        String outDir = inDir;
+        String resourcesDir = inDir;
+        File planOutputFile = null;
+        File planInputFile = null;
 
         for (String arg : args)
         {
@@ -136,66 +172,714 @@ public class PostProcessing
             else if (arg.startsWith(Config.RESOURCES_ARG_NAME))
                 resourcesDir
                     = arg.substring(Config.RESOURCES_ARG_NAME.length()) + "/";
+            else if (arg.startsWith(Config.RENDER_MODE_ARG_NAME))
+                Config.RENDER_MODE
+                    = "timeline".equals(
+                            arg.substring(Config.RENDER_MODE_ARG_NAME.length()))
+                        ? Config.TIMELINE_RENDER_MODE
+                        : Config.SECTIONS_RENDER_MODE;
+            else if (arg.startsWith(Config.CPUS_ARG_NAME))
+                Config.CPUS = Integer.parseInt(
+                        arg.substring(Config.CPUS_ARG_NAME.length()));
+            else if (arg.startsWith(Config.PLAN_ARG_NAME))
+                planOutputFile
+                    = new File(arg.substring(Config.PLAN_ARG_NAME.length()));
+            else if (arg.startsWith(Config.EXECUTE_ARG_NAME))
+                planInputFile
+                    = new File(arg.substring(Config.EXECUTE_ARG_NAME.length()));
         }
 
-        log("Input directory: " + inDir);
-        log("Output directory: " + outDir);
-        log("Resources directory: " + resourcesDir);
+        if (Config.AUTO_THREADS)
+            CpuBudget.configure(Config.CPUS);
 
+        ExecutorService taskQueue
+            = Executors.newFixedThreadPool(Config.JIPOPRO_THREADS);
+        ExecutorService audioTaskQueue
+            = Executors.newFixedThreadPool(Config.AUDIO_THREADS);
+
+        try
+        {
+            PostProcessing postProcessing
+                = new PostProcessing(inDir, outDir, resourcesDir,
+                                     taskQueue, audioTaskQueue);
+            postProcessing.setPlanOutputFile(planOutputFile);
+            postProcessing.setPlanInputFile(planInputFile);
+            postProcessing.setDryRun(planOutputFile != null);
+            postProcessing.run();
+        }
+        finally
+        {
+            taskQueue.shutdown();
+            audioTaskQueue.shutdown();
+        }
+    }
+
+    /**
+     * Initializes a job which processes the recording in a specific
+     * directory. Jobs are independent of each other, so several of them can
+     * run at the same time and share the same task queues.
+     * @param inDir the directory with the recording.
+     * @param outDir the directory where to store the output.
+     * @param resourcesDir the directory with the resources (images).
+     * @param taskQueue the executor to use for video and other tasks.
+     * @param audioTaskQueue the executor to use for audio conversion.
+     */
+    public PostProcessing(String inDir,
+                          String outDir,
+                          String resourcesDir,
+                          Executor taskQueue,
+                          Executor audioTaskQueue)
+    {
+        this.inDir = inDir;
+        this.outDir = outDir;
+        this.resourcesDir = resourcesDir;
+        this.taskQueue = new JobExecutor(taskQueue);
+        this.audioTaskQueue = new JobExecutor(audioTaskQueue);
+        this.taskGraph = new TaskGraph(this.taskQueue);
+    }
+
+    /**
+     * Sets the file in which to save the plan of the processing, including
+     * the estimated cost of each step.
+     * @param planOutputFile the file, or <tt>null</tt> to not save the plan.
+     */
+    public void setPlanOutputFile(File planOutputFile)
+    {
+        this.planOutputFile = planOutputFile;
+    }
+
+    /**
+     * Sets a file with a plan (saved with {@link #setPlanOutputFile(File)},
+     * possibly on another host) to execute instead of planning the
+     * processing from the metadata.
+     * @param planInputFile the file, or <tt>null</tt> to plan from the
+     * metadata.
+     */
+    public void setPlanInputFile(File planInputFile)
+    {
+        this.planInputFile = planInputFile;
+    }
+
+    /**
+     * Sets whether to stop after planning, without processing anything.
+     * @param dryRun whether to stop after planning.
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Processes the recording. Blocks until all tasks of the job have
+     * completed.
+     * @return <tt>true</tt> if the recording was processed successfully.
+     */
+    public boolean run()
+        throws IOException,
+               InterruptedException
+    {
         processingStarted = System.currentTimeMillis();
         initLogFile();
 
+        // The commands executed by this thread (and the threads which it
+        // starts) are saved in the log file of this job.
+        Exec.setThreadLogWriter(logWriter);
+        try
+        {
+            return doRun();
+        }
+        finally
+        {
+            Exec.setThreadLogWriter(null);
+            if (logWriter != null)
+            {
+                try
+                {
+                    logWriter.close();
+                }
+                catch (IOException ioe)
+                {
+                    log("Failed to close log file writer." + ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the processing. The tasks which are already running are
+     * allowed to complete, and {@link #run()} returns <tt>false</tt> after
+     * they have. The intermediate files are kept, so that the processing can
+     * be resumed later.
+     */
+    public void cancel()
+    {
+        taskGraph.cancel();
+    }
+
+    /**
+     * Checks whether the processing has been cancelled.
+     * @return <tt>true</tt> if {@link #cancel()} has been called.
+     */
+    public boolean isCancelled()
+    {
+        return taskGraph.isCancelled();
+    }
+
+    /**
+     * Implements {@link #run()}.
+     */
+    private boolean doRun()
+        throws IOException,
+               InterruptedException
+    {
+        log("Input directory: " + inDir);
+        log("Output directory: " + outDir);
+        log("Resources directory: " + resourcesDir);
+
         if (!sanityCheck())
-            return;
+            return false;
+
+        JobPlan plan;
+        if (planInputFile != null)
+        {
+            log("Executing the plan in " + planInputFile);
+            plan = JobPlan.read(planInputFile, inDir, outDir);
+        }
+        else
+        {
+            plan = createPlan();
+            if (plan == null)
+                return false; //error already logged
+        }
+        for (String problem : plan.getSectionPlan().validate())
+            log("Warning: " + problem);
+        time("Planning sections");
+
+        if (planOutputFile != null)
+        {
+            plan.write(planOutputFile, inDir, outDir, costModel);
+            log("Saved the plan in " + planOutputFile + " ("
+                    + plan.getSectionPlan().getSections().size()
+                    + " sections, estimated processing time "
+                    + Math.round(plan.estimateTotalCost(costModel))
+                    + " CPU seconds).");
+        }
+
+        if (dryRun)
+        {
+            for (String s : timings)
+                log(s);
+            return true;
+        }
+
+        return execute(plan);
+    }
 
+    /**
+     * Reads the metadata and plans the processing of the recording.
+     * @return the plan, or <tt>null</tt> if the metadata could not be
+     * processed.
+     */
+    private JobPlan createPlan()
+        throws IOException,
+               InterruptedException
+    {
         layoutStrategy.initialize(Config.OUTPUT_WIDTH,
                                   Config.OUTPUT_HEIGHT);
 
-        int sectionNumber = 0;
-        int eventInstant = 0;
-        int lastEventInstant = 0;
-        int firstVideoStartInstant = -1;
-
         // Read an "endpointId" -> "displayName" map
         Map<String, String> endpoints = readEndpoints();
 
-        // Read the metadata file.
-        Scanner scanner = new Scanner(new File(inDir + Config.METADATA_FILENAME));
-        String metadataString = scanner.useDelimiter("\\Z").next();
-        scanner.close();
+        // Read the metadata file, one event at a time.
+        final Map<String, EventTimeline> metadata
+            = new HashMap<String, EventTimeline>();
+        try
+        {
+            MetadataReader.read(
+                new File(inDir + Config.METADATA_FILENAME),
+                new MetadataReader.Handler()
+                {
+                    @Override
+                    public void handleSection(String section)
+                    {
+                        metadata.put(section, new EventTimeline());
+                    }
 
-        JSONObject metadataJSONObject
-                = (JSONObject) JSONValue.parse(metadataString);
-        if (metadataJSONObject == null)
+                    @Override
+                    public void handleEvent(String section,
+                                            RecorderEvent event)
+                    {
+                        metadata.get(section).add(event);
+                    }
+                });
+        }
+        catch (ParseException pe)
         {
             log("Failed to parse metadata from "
-                    + inDir + Config.METADATA_FILENAME + ". Broken json?");
-            return;
+                    + inDir + Config.METADATA_FILENAME + ". Broken json? "
+                    + pe);
+            return null;
         }
+        time("Reading metadata");
 
-        List<RecorderEvent> videoEvents = extractEvents(metadataJSONObject,
-                                                        MediaType.VIDEO);
+        probeCache
+            = new ProbeCache(new File(inDir + Config.PROBE_CACHE_FILENAME));
+        EventTimeline videoEvents = extractEvents(metadata, MediaType.VIDEO);
+        probeCache.save();
         if (videoEvents == null)
         {
-            return; //error already logged
+            return null; //error already logged
         }
         time("Extracting video events (calculating durations)");
 
-        // Decode videos
-        decodeParticipantVideos(videoEvents);
-        time("Decoding videos");
+        EventTimeline audioEvents = extractEvents(metadata, MediaType.AUDIO);
 
+        // Speaker changes which are too short to be worth a section are
+        // dropped before planning, if enabled.
+        SpeakerChangeFilter speakerChangeFilter = new SpeakerChangeFilter(
+                Config.MIN_SPEAKER_DWELL, Config.MIN_SPEAKER_INTERJECTION);
+        EventTimeline filteredVideoEvents = videoEvents;
+        if (Config.MIN_SPEAKER_DWELL > 0
+                || Config.MIN_SPEAKER_INTERJECTION > 0)
+            filteredVideoEvents = speakerChangeFilter.filter(videoEvents);
 
         // And now the magic begins :)
-        long firstVideoStartInstantLong = -1;
-        for (RecorderEvent event : videoEvents)
+        List<SectionDescription> sections
+            = planSections(filteredVideoEvents, endpoints);
+        if (sections == null)
+        {
+            log("Unsupported event found in the metadata.");
+            return null;
+        }
+        if (speakerChangeFilter.getDroppedCount() > 0)
+        {
+            log("Ignored " + speakerChangeFilter.getDroppedCount()
+                    + " speaker changes, which eliminated "
+                    + speakerChangeFilter.getEliminatedSectionCount()
+                    + " sections.");
+        }
+
+        if (Config.RENDER_MODE == Config.SECTIONS_RENDER_MODE)
+            sections = splitLongSections(sections);
+
+        ParticipantSpans participantSpans = new ParticipantSpans(
+                getFileSpans(videoEvents), sections);
+        List<DecodeStep> decodeSteps = planDecoding(participantSpans);
+        sections = useDecodedRanges(sections, decodeSteps);
+
+        List<String> audioFiles = new ArrayList<String>();
+        List<Long> audioPadding = new ArrayList<Long>();
+        long firstAudioInstant = 0;
+        if (audioEvents != null)
+        {
+            firstAudioInstant = getFirstAudioInstant(audioEvents);
+            for (int i = 0; i < audioEvents.size(); i++)
+            {
+                if (audioEvents.getType(i) == Type.RECORDING_STARTED
+                        && isAudioFileUsable(audioEvents.getFilename(i)))
+                {
+                    audioFiles.add(audioEvents.getFilename(i));
+                    audioPadding.add(
+                        audioEvents.getInstant(i) - firstAudioInstant);
+                }
+            }
+        }
+
+        // The plan is complete before any section is processed, and doesn't
+        // share state with the planner.
+        return new JobPlan(decodeSteps,
+                           audioFiles,
+                           audioPadding,
+                           getFirstVideoInstant(videoEvents),
+                           firstAudioInstant,
+                           new SectionPlan(sections));
+    }
+
+    /**
+     * Processes the recording according to a plan. Blocks until all tasks
+     * have completed.
+     * @param plan the plan.
+     * @return <tt>true</tt> if the recording was processed successfully.
+     */
+    private boolean execute(JobPlan plan)
+        throws IOException,
+               InterruptedException
+    {
+        File manifestFile = new File(outDir + Config.MANIFEST_FILENAME);
+        if (!Config.RESUME)
+            manifestFile.delete();
+        manifest = new JobManifest(manifestFile);
+
+        final String audioMix = outDir + "resultAudio.wav";
+        TaskNode audioNode = mixAudio(plan.getAudioFiles(),
+                                      plan.getAudioPadding(),
+                                      audioMix);
+
+        // Decode videos
+        Map<String, TaskNode> decodingNodes
+                = decodeParticipantVideos(plan.getDecodeSteps(),
+                                          plan.getSectionPlan().getSections());
+
+        List<SectionDescription> sections = plan.getSectionPlan().getSections();
+        /*
+         * XXX we concatenate the sections and encode the video in one step,
+         * because it is more efficient. We ignore the Config.OUTPUT_FORMAT
+         * setting and have hard-coded webm settings in the concat strategies.
+         * Only the timeline, which encodes the video itself, supports it.
+         */
+        String extension
+            = Config.RENDER_MODE == Config.TIMELINE_RENDER_MODE
+                    && Config.OUTPUT_FORMAT == Config.MP4_OUTPUT_FORMAT
+                ? ".mp4"
+                : ".webm";
+        final String videoFilename = outDir + "output" + extension;
+        // Keep the video without sound separate from the final result, so
+        // that a restarted job can still use it.
+        final String videoOnlyFilename
+            = audioNode == null
+                ? videoFilename
+                : outDir + "output-no-sound" + extension;
+
+        String videoFingerprint = renderParameters();
+        for (SectionDescription sectionDesc : sections)
+            videoFingerprint += fingerprint(sectionDesc);
+        videoFingerprint = JobManifest.hash(videoFingerprint);
+
+        final TaskNode videoNode;
+        if (Config.RENDER_MODE == Config.TIMELINE_RENDER_MODE)
         {
-            int instant = (int) event.getInstant();
-            //XXX Boris this is bound to lead to problems (or at least make
-            // debugging harder). Please keep SSRCs in long-s.
-            int ssrc = (int) event.getSsrc();
+            // A single pass over the whole call, which needs all the decoded
+            // videos.
+            videoNode = taskGraph.addTask(
+                "Rendering timeline and encoding video",
+                manifest.checkpoint(
+                    "video", videoFingerprint, videoOnlyFilename,
+                    Executors.callable(
+                        new TimelineRenderingTask(
+                            sections, outDir, resourcesDir,
+                            videoOnlyFilename))),
+                decodingNodes.values());
+        }
+        else
+        {
+            // Start encoding, so that sections are encoded as they complete.
+            if (concatStrategy instanceof StreamingConcatStrategy
+                    && !manifest.isCompleted(
+                            "video", videoFingerprint, videoOnlyFilename))
+            {
+                ((StreamingConcatStrategy) concatStrategy)
+                    .start(outDir + "sections", videoOnlyFilename);
+            }
 
-            if (event.getType() != RecorderEvent.Type.RECORDING_STARTED &&
+            // The streaming encoder only advances over the sections which
+            // are complete from the start, so the sections are started in
+            // windows, in order, and only inside a window are the longest
+            // ones started first.
+            int window = concatStrategy instanceof StreamingConcatStrategy
+                ? 2 * Config.JIPOPRO_THREADS
+                : sections.size();
+            int windows = (sections.size() + window - 1) / window;
+
+            final List<TaskNode> sectionNodes = new LinkedList<TaskNode>();
+            for (SectionDescription sectionDesc : sections)
+            {
+                // A section only needs the decoded videos which it shows.
+                final List<TaskNode> dependencies
+                    = new LinkedList<TaskNode>();
+                for (ParticipantInfo participant
+                        : sectionDesc.activeParticipants)
+                    dependencies.add(
+                        decodingNodes.get(participant.decodedFilename));
+
+                String sectionFilename
+                    = outDir + "sections/0_" + sectionDesc.sequenceNumber
+                        + ".mov";
+                final Callable<Void> sectionTask = manifest.checkpoint(
+                    "section " + sectionDesc.sequenceNumber,
+                    JobManifest.hash(
+                        renderParameters() + fingerprint(sectionDesc)),
+                    sectionFilename,
+                    measure(
+                        sectionDesc,
+                        sectionFilename,
+                        new SectionProcessingTask(
+                            sectionDesc, outDir, resourcesDir)));
+                        //new SectionProcessingTaskNoTrimImpl(sectionDesc, outDir, resourcesDir)));
+                final int f_sectionNumber = sectionDesc.sequenceNumber;
+                // Start the longest sections (of a window) first, so that
+                // the last one to complete is short. Sections with the same
+                // estimate start in order.
+                double estimate
+                    = Math.max(0, costModel.estimate(sectionDesc));
+                double priority
+                    = windows - sectionNodes.size() / window
+                        + estimate / (1 + estimate);
+                sectionNodes.add(taskGraph.addTask(
+                    "Processing section " + sectionDesc.sequenceNumber,
+                    new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                            throws Exception
+                        {
+                            try
+                            {
+                                // Don't render from a video which failed to
+                                // decode.
+                                for (TaskNode dependency : dependencies)
+                                {
+                                    if (dependency != null
+                                            && dependency.isFailed())
+                                        throw new IOException(
+                                            dependency.getName()
+                                                + " failed.");
+                                }
+                                return sectionTask.call();
+                            }
+                            finally
+                            {
+                                sectionCompleted(f_sectionNumber);
+                            }
+                        }
+                    },
+                    priority,
+                    dependencies));
+            }
+
+            videoNode = taskGraph.addTask(
+                "Concatenating sections and encoding video",
+                manifest.checkpoint(
+                    "video", videoFingerprint, videoOnlyFilename,
+                    new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                            throws Exception
+                        {
+                            concatStrategy.concatFiles(outDir + "sections",
+                                                       videoOnlyFilename);
+
+                            // Don't record the video as completed if some of
+                            // its sections are missing.
+                            for (TaskNode sectionNode : sectionNodes)
+                            {
+                                if (sectionNode.isFailed())
+                                    throw new IOException(
+                                        sectionNode.getName() + " failed.");
+                            }
+                            return null;
+                        }
+                    }),
+                sectionNodes);
+        }
+
+        if (audioNode != null)
+        {
+            final TaskNode f_audioNode = audioNode;
+            final long f_firstVideoStartInstant = plan.getFirstVideoInstant();
+            final long firstAudioInstant = plan.getFirstAudioInstant();
+            String mergeFingerprint = JobManifest.hash(
+                videoFingerprint + audioFingerprint
+                    + f_firstVideoStartInstant + ":" + firstAudioInstant);
+            taskGraph.addTask(
+                "Merging audio and video",
+                manifest.checkpoint(
+                    "merge", mergeFingerprint, videoFilename,
+                    new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws Exception
+                    {
+                        if (videoNode.isFailed() || f_audioNode.isFailed())
+                        {
+                            throw new IOException(
+                                "Not merging audio and video, because a"
+                                    + " previous step failed.");
+                        }
+
+                        long audioOffset = 0, videoOffset = 0;
+                        long diff = firstAudioInstant - f_firstVideoStartInstant;
+                        if (diff > 0)
+                            audioOffset = diff;
+                        else if (diff < 0)
+                            videoOffset = -diff;
+
+                        merge(audioMix, audioOffset,
+                              videoOnlyFilename, videoOffset,
+                              videoFilename);
+                        return null;
+                    }
+                }), videoNode, audioNode);
+        }
+
+        taskGraph.awaitCompletion();
+        costModel.save();
+
+        if (isCancelled() && concatStrategy instanceof StreamingConcatStrategy)
+            ((StreamingConcatStrategy) concatStrategy).abort();
+
+        // The intermediate files are only removed once everything has
+        // succeeded, so that a restarted job can use them.
+        boolean failed = false;
+        for (TaskNode node : taskGraph.getNodes())
+            failed |= node.isFailed();
+        if (!failed)
+        {
+            Exec.exec("rm -rf " + outDir + "sections");
+            new File(outDir + Config.DONE_FILENAME).createNewFile();
+        }
+
+        time("Processing (decoding, sections, audio, concatenation, merging)");
+        timeCriticalPath("Video", videoNode);
+        if (audioNode != null)
+            timeCriticalPath("Audio", audioNode);
+        for (TaskNode node : taskGraph.getNodes())
+        {
+            timings.add("[TIME]   " + node.getName() + ": "
+                    + Utils.millisToSeconds(
+                            node.getEndTime() - node.getStartTime())
+                    + " (finished at "
+                    + Utils.millisToSeconds(
+                            node.getEndTime() - processingStarted)
+                    + (node.isFailed() ? ", FAILED)" : ")"));
+        }
+
+        // XXX encoding is now done during concatenation
+        //String finalResult = encodeResultVideo(videoFilename);
+        //time("Encoding final result");
+
+        for (String s : timings)
+            log(s);
+        log("All done, result saved in " + videoFilename
+                + ". And it took only " +
+                Utils.millisToSeconds(System.currentTimeMillis() - processingStarted)
+                + " seconds.");
+
+        return !failed;
+    }
+
+    /**
+     * Notifies {@link #concatStrategy} that a section has completed, if it
+     * is interested.
+     * @param sequenceNumber the sequence number of the section.
+     */
+    private void sectionCompleted(int sequenceNumber)
+    {
+        if (concatStrategy instanceof StreamingConcatStrategy)
+        {
+            ((StreamingConcatStrategy) concatStrategy)
+                .sectionCompleted(sequenceNumber);
+        }
+    }
+
+    /**
+     * Wraps the processing of a section so that its duration is added to
+     * {@link #costModel} if it succeeds. The time spent waiting for ffmpeg
+     * threads (see {@link Exec#acquireFfmpegThreads(int)}) depends on the
+     * other tasks, and is not included.
+     * @param sectionDesc the section.
+     * @param outputFilename the file which the processing produces.
+     * @param task the processing of the section.
+     * @return the wrapped task.
+     */
+    private Callable<Void> measure(final SectionDescription sectionDesc,
+                                   final String outputFilename,
+                                   final Runnable task)
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                long start = System.currentTimeMillis();
+                long waited = Exec.getFfmpegWaitTime();
+                task.run();
+                if (new File(outputFilename).exists())
+                {
+                    waited = Exec.getFfmpegWaitTime() - waited;
+                    costModel.addSample(
+                        sectionDesc,
+                        System.currentTimeMillis() - start - waited);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Adds the critical path which ends with a specific node of
+     * {@link #taskGraph} to the timings.
+     * @param s the name of the path.
+     * @param node the last node of the path.
+     */
+    private void timeCriticalPath(String s, TaskNode node)
+    {
+        String path = "";
+        for (TaskNode n : taskGraph.getCriticalPath(node))
+        {
+            if (path.length() > 0)
+                path += " -> ";
+            path += n.getName() + " ("
+                    + Utils.millisToSeconds(n.getEndTime() - n.getStartTime())
+                    + ")";
+        }
+
+        timings.add("[TIME] " + s + " critical path: "
+                + Utils.millisToSeconds(node.getEndTime() - processingStarted)
+                + ": " + path);
+    }
+
+    /**
+     * Returns a string describing the parameters which affect the rendering
+     * of the video, to be included in the fingerprints of the video
+     * processing steps.
+     * @return a string describing the rendering parameters.
+     */
+    private String renderParameters()
+    {
+        return "size=" + Config.OUTPUT_WIDTH + "x" + Config.OUTPUT_HEIGHT
+            + ";fps=" + Config.OUTPUT_FPS
+            + ";quality=" + Config.QUALITY_LEVEL
+            + ";cpu-used=" + Config.FFMPEG_CPU_USED
+            + ";render-mode=" + Config.RENDER_MODE
+            + ";resources=" + resourcesDir + ";";
+    }
+
+    /**
+     * Plans the sections of the output video according to the video events.
+     * @param videoEvents the list of video events, ordered by instant.
+     * @param endpoints a map between endpoint ID and display name.
+     * @return the sections, in order, or <tt>null</tt> if an unsupported
+     * event was found.
+     */
+    private List<SectionDescription> planSections(
+            EventTimeline videoEvents,
+            Map<String, String> endpoints)
+    {
+        ActiveParticipantsManager activeParticipantsManager =
+            new WithSpeakerInVideosListParticipantsManager();
+        List<ParticipantInfo> activeParticipants = null;
+        int videoDurationError = 0;
+        int sectionNumber = 0;
+        int eventInstant = 0;
+        int lastEventInstant = 0;
+        long firstVideoStartInstant = -1;
+
+        List<SectionDescription> sections
+                = new LinkedList<SectionDescription>();
+        SectionDescription lastSection = null;
+        String lastComposition = null;
+        int coalescedSections = 0;
+
+        for (int i = 0; i < videoEvents.size(); i++)
+        {
+            long instant = videoEvents.getInstant(i);
+            long ssrc = videoEvents.getSsrc(i);
+            Type type = videoEvents.getType(i);
+
+            if (type != Type.RECORDING_STARTED &&
                 firstVideoStartInstant == -1)
             {
                 continue;
@@ -204,9 +888,10 @@ public class PostProcessing
             if (firstVideoStartInstant == -1) 
             {
                 firstVideoStartInstant = instant;
-                firstVideoStartInstantLong = event.getInstant();
             }
-            eventInstant = instant - firstVideoStartInstant;
+            // Instants relative to the start of the video fit in an int for
+            // recordings of up to 24 days.
+            eventInstant = (int) (instant - firstVideoStartInstant);
             
             //Once we read an event from the metadata file we process the videos 
             // files from the previous event instant to the current event
@@ -215,19 +900,10 @@ public class PostProcessing
                 eventInstant - lastEventInstant
                         >= MINIMUM_SECTION_DURATION)
             {
-                System.err.println("Processing event: " + event);
+                System.err.println("Processing event: "
+                                       + videoEvents.toString(i));
                 //processLastEvent(eventInstant, lastEventInstant);
-                SectionDescription sectionDesc = new SectionDescription();
-                sectionDesc.activeParticipants = activeParticipants;
                 layoutStrategy.calculateDimensions(activeParticipants);
-                sectionDesc.largeVideoDimension = 
-                    layoutStrategy.getLargeVideoDimensions();
-                sectionDesc.smallVideosDimensions = 
-                    layoutStrategy.getSmallVideosDimensions();
-                sectionDesc.smallVideosPositions = 
-                    layoutStrategy.getSmallVideosPositions();
-                sectionDesc.sequenceNumber = sectionNumber;
-                sectionDesc.startInstant = lastEventInstant;
                 videoDurationError += 
                 (eventInstant - lastEventInstant) % SINGLE_FRAME_DURATION;
                 int sectionDurationCorrection = 0;
@@ -236,42 +912,67 @@ public class PostProcessing
                     sectionDurationCorrection = -SINGLE_FRAME_DURATION;
                     videoDurationError -= SINGLE_FRAME_DURATION;
                 }
-                sectionDesc.endInstant = 
-                    eventInstant; //+ sectionDurationCorrection;
-                
-                sectionProcessingTaskQueue.execute(
-                    new SectionProcessingTask(sectionDesc, outDir, resourcesDir));
-                    //new SectionProcessingTaskNoTrimImpl(sectionDesc, outDir, resourcesDir));
-
-                sectionNumber++;
-                hasProcessedEvents = true;
+                // The section copies the participants and the layout, so it
+                // isn't affected by the processing of the next events.
+                SectionDescription sectionDesc = new SectionDescription(
+                    sectionNumber,
+                    lastEventInstant,
+                    eventInstant, //+ sectionDurationCorrection;
+                    activeParticipants,
+                    layoutStrategy.getLargeVideoDimensions(),
+                    layoutStrategy.getSmallVideosDimensions(),
+                    layoutStrategy.getSmallVideosPositions());
+
+                // If nothing visible changed since the previous section,
+                // extend it instead of starting a new one.
+                String composition = composition(sectionDesc);
+                if (lastSection != null
+                        && lastSection.endInstant == sectionDesc.startInstant
+                        && composition.equals(lastComposition))
+                {
+                    lastSection = lastSection.withTiming(
+                        lastSection.sequenceNumber,
+                        lastSection.startInstant,
+                        sectionDesc.endInstant);
+                    sections.set(sections.size() - 1, lastSection);
+                    coalescedSections++;
+                }
+                else
+                {
+                    sections.add(sectionDesc);
+                    lastSection = sectionDesc;
+                    lastComposition = composition;
+                    sectionNumber++;
+                }
+
                 lastEventInstant = eventInstant;
             }
             else if (eventInstant - lastEventInstant < MINIMUM_SECTION_DURATION)
             {
                 System.err.println("Ignoring an event because it's too close"
-                                   + "to the previous: " + event.getType()
-                                   + ", " + event.getSsrc() + " " + event);
+                                   + " to the previous: "
+                                   + videoEvents.toString(i));
             }
 
-            switch (event.getType())
+            switch (type)
             {
                 case RECORDING_STARTED:
-                    int newParticipantSSRC = ssrc;
-                    ParticipantInfo participant = 
-                            new ParticipantInfo(newParticipantSSRC);
+                    ParticipantInfo participant = new ParticipantInfo(ssrc);
                     participant.currentVideoFileStartInstant = eventInstant;
                     participant.lastActiveInstant = eventInstant;
                     //Needs refactoring
                     participant.aspectRatio = 
-                        event.getAspectRatio() == AspectRatio.ASPECT_RATIO_4_3
+                        videoEvents.getAspectRatio(i)
+                                == AspectRatio.ASPECT_RATIO_4_3
                         ? AspectRatioUtil.ASPECT_RATIO_4_3
                         : AspectRatioUtil.ASPECT_RATIO_16_9;
-                    participant.fileName = inDir + event.getFilename();
+                    String filename = videoEvents.getFilename(i);
+                    participant.fileName = inDir + filename;
                     participant.decodedFilename = outDir +
-                            Utils.trimFileExtension(event.getFilename()) + ".mov";
+                            Utils.trimFileExtension(filename) + ".mov";
 
-                    participant.username = endpoints.get(event.getEndpointId());
+                    participant.username
+                        = endpoints.get(videoEvents.getEndpointId(i));
 
                     //XXX Boris: if an event doesn't have a participantName
                     //it now returns null instead of "". This should probably be
@@ -279,106 +980,451 @@ public class PostProcessing
                     if (participant.username == null
                             || participant.username.equals("null"))
                         participant.username = "";
-                    participant.description = event.getParticipantDescription();
+                    participant.description
+                        = videoEvents.getParticipantDescription(i);
                     if (participant.description == null)
                         participant.description = "";
                     participant.disableOtherVideosOnTop = 
-                        event.getDisableOtherVideosOnTop();
+                        videoEvents.getDisableOtherVideosOnTop(i);
                     activeParticipantsManager.addParticipant(participant);
                     break;
                 case RECORDING_ENDED:
-                    int participantToRemove = ssrc;
-                    activeParticipantsManager.
-                        removeParticipant(participantToRemove);
+                    activeParticipantsManager.removeParticipant(ssrc);
                     break;
                 case SPEAKER_CHANGED:
-                    int speakerSSRC = ssrc;
                     activeParticipantsManager.
-                        speakerChange(speakerSSRC, eventInstant);
+                        speakerChange(ssrc, eventInstant);
                     break;
                 case OTHER:
-                    return;
+                    return null;
+            }
+            
+            activeParticipants = 
+                activeParticipantsManager.getActiveParticipantsList();
+            activeParticipants
+                = removeSmallVideosIfDisabled(activeParticipants);
+            
+            if (activeParticipants == null || activeParticipants.size() == 0) 
+            {
+                break; //video all done.
+            }
+        }
+        log("Planned " + sections.size() + " sections (merged "
+                + coalescedSections + " with an identical composition).");
+        return sections;
+    }
+
+    /**
+     * Plans the decoding of the participants' video files. Unless
+     * {@link Config#DECODE_VISIBLE_ONLY} is disabled, only the ranges of the
+     * files which are shown (extended by {@link Config#DECODE_MARGIN}) are
+     * decoded, and the files which are never shown are skipped.
+     * @param participantSpans the spans of the files.
+     * @return the ranges to decode, in the order in which the files start.
+     */
+    private List<DecodeStep> planDecoding(ParticipantSpans participantSpans)
+    {
+        List<DecodeStep> steps = new ArrayList<DecodeStep>();
+        long totalDuration = 0;
+        long decodedDuration = 0;
+        int hiddenFiles = 0;
+
+        for (ParticipantSpans.Span fileSpan : participantSpans.getFileSpans())
+        {
+            String file = fileSpan.fileName.substring(inDir.length());
+            String trimmedFile = Utils.trimFileExtension(file);
+            long fileDuration = fileSpan.end - fileSpan.start;
+            totalDuration += fileDuration;
+
+            if (!Config.DECODE_VISIBLE_ONLY)
+            {
+                steps.add(new DecodeStep(file, 0, fileDuration, true,
+                                         trimmedFile + ".mov",
+                                         planChunks(file, 0, fileDuration)));
+                decodedDuration += fileDuration;
+                continue;
+            }
+
+            List<ParticipantSpans.Span> visibleSpans
+                = participantSpans.getVisibleSpans(fileSpan.fileName);
+            if (visibleSpans.isEmpty())
+            {
+                hiddenFiles++;
+                continue;
+            }
+
+            // The visible spans are in order, so overlapping ranges are
+            // next to each other. The ranges are not limited to the end of
+            // the file, because a section can extend past it.
+            List<long[]> ranges = new ArrayList<long[]>();
+            for (ParticipantSpans.Span span : visibleSpans)
+            {
+                long from = Math.max(
+                    0, span.getSourceOffset(span.start) - Config.DECODE_MARGIN);
+                long to = span.getSourceOffset(span.end) + Config.DECODE_MARGIN;
+                long[] last
+                    = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && from <= last[1])
+                    last[1] = Math.max(last[1], to);
+                else
+                    ranges.add(new long[] { from, to });
+            }
+
+            for (long[] range : ranges)
+            {
+                if (range[0] == 0 && range[1] >= fileDuration)
+                {
+                    steps.add(new DecodeStep(
+                        file, 0, fileDuration, true,
+                        trimmedFile + ".mov",
+                        planChunks(file, 0, fileDuration)));
+                    decodedDuration += fileDuration;
+                }
+                else
+                {
+                    steps.add(new DecodeStep(
+                        file, range[0], range[1] - range[0], false,
+                        trimmedFile + "_" + range[0] + ".mov",
+                        planChunks(file, range[0], range[1])));
+                    decodedDuration
+                        += Math.min(range[1], fileDuration) - range[0];
+                }
+            }
+        }
+
+        int chunks = 0;
+        for (DecodeStep step : steps)
+            chunks += step.chunks.size();
+        log("Decoding " + Utils.millisToSeconds(decodedDuration) + "s of "
+                + Utils.millisToSeconds(totalDuration)
+                + "s of participant video in " + steps.size() + " parts and "
+                + chunks + " chunks (" + hiddenFiles
+                + " files are never shown).");
+        return steps;
+    }
+
+    /**
+     * Splits a range of a video file which is longer than
+     * {@link Config#DECODE_CHUNK_DURATION} into chunks of about the same
+     * length, which are decoded in parallel. The chunks start at the
+     * keyframes closest to the ideal boundaries, if the keyframes of the
+     * file are known, so that decoding a chunk doesn't start with frames
+     * which are thrown away. The boundaries are rounded up to a whole frame
+     * from the start of the range, so that the decoded chunks join without
+     * gaps.
+     * @param file the name of the video file, relative to the input
+     * directory.
+     * @param from the start of the range.
+     * @param to the end of the range.
+     * @return the offsets at which the chunks start, the first being
+     * <tt>from</tt>.
+     */
+    private List<Long> planChunks(String file, long from, long to)
+    {
+        List<Long> chunks = new ArrayList<Long>();
+        chunks.add(from);
+
+        long duration = to - from;
+        if (Config.DECODE_CHUNK_DURATION <= 0
+                || duration <= Config.DECODE_CHUNK_DURATION)
+            return chunks;
+
+        int parts = (int) ((duration + Config.DECODE_CHUNK_DURATION - 1)
+                / Config.DECODE_CHUNK_DURATION);
+        VideoFileInfo info = probeCache.get(file, new File(inDir + file));
+        long[] keyframes = info == null ? new long[0] : info.getKeyframes();
+
+        for (int i = 1; i < parts; i++)
+        {
+            long boundary = from + duration * i / parts;
+            long keyframe = findClosest(keyframes, boundary);
+            if (keyframe != -1
+                    && Math.abs(keyframe - boundary) < duration / parts / 2)
+                boundary = keyframe;
+
+            long frames = (boundary - from + SINGLE_FRAME_DURATION - 1)
+                    / SINGLE_FRAME_DURATION;
+            boundary = from + frames * SINGLE_FRAME_DURATION;
+            if (boundary > chunks.get(chunks.size() - 1) && boundary < to)
+                chunks.add(boundary);
+        }
+        return chunks;
+    }
+
+    /**
+     * Finds the value closest to <tt>value</tt> in a sorted array.
+     * @return the closest value, or -1 if the array is empty.
+     */
+    private static long findClosest(long[] sorted, long value)
+    {
+        if (sorted.length == 0)
+            return -1;
+
+        int index = Arrays.binarySearch(sorted, value);
+        if (index >= 0)
+            return sorted[index];
+
+        int insertion = -index - 1;
+        if (insertion == 0)
+            return sorted[0];
+        if (insertion == sorted.length)
+            return sorted[sorted.length - 1];
+        return value - sorted[insertion - 1] <= sorted[insertion] - value
+            ? sorted[insertion - 1]
+            : sorted[insertion];
+    }
+
+    /**
+     * Makes the participants of the sections use the decoded files which
+     * cover them. A participant's video then starts at the start of the
+     * decoded range, so that the offsets computed for the section are
+     * offsets in the decoded file.
+     * @param sections the sections.
+     * @param decodeSteps the ranges of the video files which are decoded.
+     * @return the sections, with new participants.
+     */
+    private List<SectionDescription> useDecodedRanges(
+            List<SectionDescription> sections,
+            List<DecodeStep> decodeSteps)
+    {
+        Map<String, List<DecodeStep>> stepsByFile
+            = new HashMap<String, List<DecodeStep>>();
+        for (DecodeStep step : decodeSteps)
+        {
+            List<DecodeStep> steps = stepsByFile.get(inDir + step.file);
+            if (steps == null)
+            {
+                steps = new ArrayList<DecodeStep>();
+                stepsByFile.put(inDir + step.file, steps);
+            }
+            steps.add(step);
+        }
+
+        List<SectionDescription> result = new ArrayList<SectionDescription>();
+        for (SectionDescription section : sections)
+        {
+            List<ParticipantInfo> participants
+                = new ArrayList<ParticipantInfo>();
+            for (ParticipantInfo participant : section.activeParticipants)
+            {
+                ParticipantInfo p;
+                try
+                {
+                    p = (ParticipantInfo) participant.clone();
+                }
+                catch (CloneNotSupportedException e)
+                {
+                    // ParticipantInfo implements Cloneable
+                    throw new RuntimeException(e);
+                }
+
+                DecodeStep covering = null;
+                if (stepsByFile.containsKey(p.fileName))
+                {
+                    for (DecodeStep step : stepsByFile.get(p.fileName))
+                    {
+                        if (step.covers(section.getSourceOffset(p),
+                                        section.getDuration()))
+                        {
+                            covering = step;
+                            break;
+                        }
+                    }
+                }
+                // The steps are planned from the same sections.
+                if (covering == null)
+                    throw new IllegalStateException(
+                        "No decoded range of " + p.fileName + " covers section "
+                            + section.sequenceNumber);
+
+                p.decodedFilename = outDir + covering.decodedFile;
+                p.currentVideoFileStartInstant += (int) covering.start;
+                participants.add(p);
+            }
+
+            result.add(new SectionDescription(section.sequenceNumber,
+                                              section.startInstant,
+                                              section.endInstant,
+                                              participants,
+                                              section.largeVideoDimension,
+                                              section.smallVideosDimensions,
+                                              section.smallVideosPositions));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the spans during which the video files are available, from
+     * their <tt>RECORDING_STARTED</tt> to their (generated)
+     * <tt>RECORDING_ENDED</tt> events, relative to the start of the output
+     * video.
+     * @param videoEvents the list of video events, ordered by instant.
+     * @return the spans, in the order in which the files start.
+     */
+    private List<ParticipantSpans.Span> getFileSpans(EventTimeline videoEvents)
+    {
+        long firstVideoInstant = getFirstVideoInstant(videoEvents);
+        Map<String, Integer> starts = new LinkedHashMap<String, Integer>();
+        Map<String, ParticipantSpans.Span> spans
+            = new HashMap<String, ParticipantSpans.Span>();
+        for (int i = 0; i < videoEvents.size(); i++)
+        {
+            String filename = videoEvents.getFilename(i);
+            int instant
+                = (int) (videoEvents.getInstant(i) - firstVideoInstant);
+            if (videoEvents.getType(i) == Type.RECORDING_STARTED)
+            {
+                starts.put(filename, instant);
+            }
+            else if (videoEvents.getType(i) == Type.RECORDING_ENDED
+                    && starts.containsKey(filename))
+            {
+                int start = starts.get(filename);
+                spans.put(filename, new ParticipantSpans.Span(
+                        inDir + filename,
+                        outDir + Utils.trimFileExtension(filename) + ".mov",
+                        videoEvents.getSsrc(i),
+                        start,
+                        start,
+                        instant));
+            }
+        }
+
+        List<ParticipantSpans.Span> result
+            = new ArrayList<ParticipantSpans.Span>();
+        for (String filename : starts.keySet())
+        {
+            if (spans.containsKey(filename))
+                result.add(spans.get(filename));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the instant of the first <tt>RECORDING_STARTED</tt> event,
+     * which is the start of the output video.
+     * @param videoEvents the list of video events, ordered by instant.
+     * @return the instant of the first <tt>RECORDING_STARTED</tt> event, or
+     * -1 if there is no such event.
+     */
+    private static long getFirstVideoInstant(EventTimeline videoEvents)
+    {
+        int index = videoEvents.indexOf(Type.RECORDING_STARTED, 0);
+        return index == -1 ? -1 : videoEvents.getInstant(index);
+    }
+
+    /**
+     * Splits the sections which are longer than
+     * {@link Config#MAX_SECTION_DURATION} into shorter sections, so that
+     * they can be processed in parallel. The parts have the same composition
+     * as the original section, and their durations are whole numbers of
+     * frames, so that they concatenate without gaps. Since the offset in each
+     * participant's video is computed from the start of the section and the
+     * start of the participant's file, each part reads the correct frames.
+     * @param sections the sections, in order.
+     * @return the split sections, in order and with new sequence numbers.
+     */
+    private static List<SectionDescription> splitLongSections(
+            List<SectionDescription> sections)
+    {
+        if (Config.MAX_SECTION_DURATION <= 0)
+            return sections;
+
+        List<SectionDescription> result = new LinkedList<SectionDescription>();
+        for (SectionDescription sectionDesc : sections)
+        {
+            int duration = sectionDesc.endInstant - sectionDesc.startInstant;
+            if (duration <= Config.MAX_SECTION_DURATION)
+            {
+                result.add(sectionDesc.withTiming(result.size(),
+                                                  sectionDesc.startInstant,
+                                                  sectionDesc.endInstant));
+                continue;
             }
-            
-            activeParticipants = 
-                activeParticipantsManager.getActiveParticipantsList();
-            removeSmallVideosIfDisabled();
-            
-            if (activeParticipants == null || activeParticipants.size() == 0) 
+
+            // Split into parts of equal length, rounded up to a whole frame.
+            int parts = (duration + Config.MAX_SECTION_DURATION - 1)
+                    / Config.MAX_SECTION_DURATION;
+            int frames = (duration / parts + SINGLE_FRAME_DURATION - 1)
+                    / SINGLE_FRAME_DURATION;
+            int partDuration = Math.max(1, frames) * SINGLE_FRAME_DURATION;
+            int firstPart = result.size();
+
+            for (int start = sectionDesc.startInstant;
+                 start < sectionDesc.endInstant;
+                 start += partDuration)
             {
-                break; //video all done.
+                result.add(sectionDesc.withTiming(
+                    result.size(),
+                    start,
+                    Math.min(start + partDuration, sectionDesc.endInstant)));
             }
+            System.err.println("Split a section of " + duration + "ms into "
+                    + (result.size() - firstPart) + " parts.");
         }
+        return result;
+    }
 
-        sectionProcessingTaskQueue.shutdown();
-        try
+    /**
+     * Returns a string describing everything that determines how a section
+     * looks, apart from its timing: the layout, and the participants which
+     * are shown and their state. Two consecutive sections with the same
+     * composition can be rendered as one, because the offsets in the
+     * participants' videos continue from one to the other.
+     * @param sectionDesc the section.
+     * @return the composition of <tt>sectionDesc</tt>.
+     */
+    private String composition(SectionDescription sectionDesc)
+    {
+        String s = "large=" + sectionDesc.largeVideoDimension
+            + ";small=" + sectionDesc.smallVideosDimensions
+            + ";positions=" + sectionDesc.smallVideosPositions;
+        for (ParticipantInfo p : sectionDesc.activeParticipants)
         {
-            sectionProcessingTaskQueue.awaitTermination(
-                    Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            time("Processing sections");
+            s += ";" + p.decodedFilename
+                + "@" + p.currentVideoFileStartInstant
+                + "," + p.aspectRatio
+                + (p.isCurrentlySpeaking ? ",speaking" : "")
+                + "," + p.username
+                + "," + p.description;
         }
-        catch (InterruptedException e)
+        return s;
+    }
+
+    /**
+     * Returns a fingerprint of the inputs of a section: its timing, layout
+     * and participants, including the source files of the participants'
+     * videos.
+     * @param sectionDesc the section.
+     * @return the fingerprint of <tt>sectionDesc</tt>.
+     */
+    private String fingerprint(SectionDescription sectionDesc)
+    {
+        String s = "section " + sectionDesc.sequenceNumber
+            + ":" + sectionDesc.startInstant + "-" + sectionDesc.endInstant
+            + ";large=" + sectionDesc.largeVideoDimension
+            + ";small=" + sectionDesc.smallVideosDimensions
+            + ";positions=" + sectionDesc.smallVideosPositions;
+        for (ParticipantInfo p : sectionDesc.activeParticipants)
         {
-            log("Failed to process sections: "+e);
-            e.printStackTrace();
-            //should we continue?
+            s += ";" + JobManifest.fingerprintFile(p.fileName)
+                + "@" + p.currentVideoFileStartInstant
+                + (p.isCurrentlySpeaking ? ",speaking" : "")
+                + "," + p.username;
         }
-
-        /*
-         * XXX we concatenate the sections and encode the video in one step,
-         * because it is more efficient. We ignore the Config.OUTPUT_FORMAT
-         * setting and have hard-coded webm settings in SimpleConcatStrategy.
-         */
-        String videoFilename = outDir + "output.webm";
-        concatStrategy.concatFiles(outDir+"sections", videoFilename);
-        time("Concatenating sections and encode video");
-        Exec.exec("rm -rf " + outDir + "sections");
-
-        // Handle audio
-        List<RecorderEvent> audioEvents
-                = extractEvents(metadataJSONObject, MediaType.AUDIO);
-        if (audioEvents == null)
-            return; //error already logged
-
-        String audioMix = outDir + "resultAudio.wav";
-        long firstAudioInstant = mixAudio(audioEvents, audioMix);
-        time("Mixing audio");
-
-
-        long audioOffset = 0, videoOffset = 0;
-        long diff = firstAudioInstant - firstVideoStartInstantLong;
-        if (diff > 0)
-            audioOffset = diff;
-        else if (diff < 0)
-            videoOffset = -diff;
-
-        merge(audioMix, audioOffset, videoFilename, videoOffset, videoFilename);
-        time("Merging audio and video");
-
-        // XXX encoding is now done during concatenation
-        //String finalResult = encodeResultVideo(videoFilename);
-        //time("Encoding final result");
-
-        for (String s : timings)
-            log(s);
-        log("All done, result saved in " + videoFilename
-                + ". And it took only " +
-                Utils.millisToSeconds(System.currentTimeMillis() - processingStarted)
-                + " seconds.");
-
-        Exec.closeLogFile();
+        return s + ";";
     }
 
-    private static void time(String s)
+    private void time(String s)
     {
         long lastTime;
         if (timings.isEmpty())
             lastTime = processingStarted;
         else
-            lastTime = PostProcessing.lastTime;
+            lastTime = this.lastTime;
 
         long now = System.currentTimeMillis();
-        PostProcessing.lastTime = now;
+        this.lastTime = now;
         timings.add("[TIME] " + s + ": " + Utils.millisToSeconds(now - lastTime));
     }
 
@@ -395,183 +1441,275 @@ public class PostProcessing
      * @throws InterruptedException
      * @throws IOException
      */
-    private static void merge(String audioFilename,
-                                 long audioStartOffset,
-                                 String videoFilename,
-                                 long videoStartOffset,
-                                 String outputFilename)
+    private void merge(String audioFilename,
+                          long audioStartOffset,
+                          String videoFilename,
+                          long videoStartOffset,
+                          String outputFilename)
             throws InterruptedException,
                    IOException
     {
+        // The container of the output decides the audio codec.
+        String tempFilename = outDir + "temp"
+            + outputFilename.substring(outputFilename.lastIndexOf('.'));
         Exec.exec(Config.FFMPEG + " -y"
                           + " -itsoffset " + Utils.millisToSeconds(videoStartOffset)
                           + " -i " + videoFilename
                           + " -itsoffset " + Utils.millisToSeconds(audioStartOffset)
                           + " -i " + audioFilename
-                          + " -vcodec copy " + outDir + "temp.webm");
+                          + " -vcodec copy " + tempFilename);
         //Exec.exec("mv " + videoFilename + " output-no-sound.mov"); //keep for debugging
 
         // use temp.mov to allow videoFilename == outputFilename
-        Exec.exec("mv " + outDir + "temp.webm " + outputFilename);
+        Exec.exec("mv " + tempFilename + " " + outputFilename);
+    }
+
+    /**
+     * Checks whether an audio file should be included in the mix.
+     * @param filename the name of the file, relative to the input directory.
+     * @return <tt>true</tt> if the file should be included in the mix.
+     */
+    private boolean isAudioFileUsable(String filename)
+    {
+        // workaround a current problem with the recorder which leaves
+        // empty files. also, sox chokes on small files
+        int minAudioFileSize = 4000;
+        File file = new File(inDir + filename);
+        return file.exists() && file.length() >= minAudioFileSize;
     }
 
     /**
-     * Mixes the audio according the the events in <tt>audioEvents</tt>
+     * Returns the instant of the first audio event which is included in the
+     * mix.
      * @param audioEvents the list of audio events.
+     * @return the instant of the first audio event which is included in the
+     * mix, or 0 if there is no such event.
+     */
+    private long getFirstAudioInstant(EventTimeline audioEvents)
+    {
+        for (int i = 0; i < audioEvents.size(); i++)
+        {
+            if (audioEvents.getType(i) == Type.RECORDING_STARTED
+                    && isAudioFileUsable(audioEvents.getFilename(i)))
+                return audioEvents.getInstant(i);
+        }
+        return 0;
+    }
+
+    /**
+     * Adds tasks which mix audio files to {@link #taskGraph}. The audio files
+     * are converted and padded in parallel on {@link #audioTaskQueue}, and
+     * then mixed.
+     * @param audioFiles the names of the audio files, relative to the input
+     * directory.
+     * @param audioPadding the time by which each file is delayed in the mix.
      * @param outputFilename the name of the file where to store the mix.
-     * @return the instant of the first event which is included in the mix.
+     * @return the node which produces the mix, or <tt>null</tt> if there is
+     * nothing to mix.
      * @throws InterruptedException
      * @throws IOException
      */
-    private static long mixAudio(List<RecorderEvent> audioEvents,
-                                   String outputFilename)
+    private TaskNode mixAudio(List<String> audioFiles,
+                              List<Long> padding,
+                              final String outputFilename)
             throws InterruptedException,
                    IOException
     {
-        long nextAudioFileInstant;
-        long firstAudioFileInstant = 0;
+        List<String> filenames = new ArrayList<String>();
+        for (String audioFile : audioFiles)
+            filenames.add(inDir + audioFile);
 
-        String[] filenames = new String[audioEvents.size()];
-        long[] padding = new long[audioEvents.size()];
-        int i = 0;
-        for (RecorderEvent event : audioEvents)
+        if (filenames.isEmpty())
         {
-            nextAudioFileInstant = event.getInstant();
-
-            if (event.getType() == Type.RECORDING_STARTED)
-            {
-                // workaround a current problem with the recorder which leaves
-                // empty files. also, sox chokes on small files
-                int minAudioFileSize = 4000;
-                File file = new File(inDir + event.getFilename());
-                if (!file.exists() || file.length() < minAudioFileSize)
-                    continue;
-
-                if (i == 0)
-                {
-                    firstAudioFileInstant = nextAudioFileInstant;
-                }
-                else
-                {
-                    padding[i] = nextAudioFileInstant - firstAudioFileInstant;
-                }
-
-                filenames[i] = inDir + event.getFilename();
-
-                i++;
-            }
+            log("No audio files to mix.");
+            return null;
         }
 
-        Exec.exec("mkdir -p " + outDir + "audio_tmp");
-
-        // the first file is just converted to wav
-        Exec.exec("sox " + filenames[0] + " " + outDir + "audio_tmp/padded0.wav");
-
-        // TODO in threads
-        // the rest need padding
-        for (int j = 1; j < i; j++)
-            Exec.exec("sox " + filenames[j] + " " + outDir + "audio_tmp/padded" + j
-                      + ".wav pad " + Utils.millisToSeconds(padding[j]));
-
-        if (i > 1)
+        String fingerprint = "";
+        for (int j = 0; j < filenames.size(); j++)
         {
-            String exec = "sox --combine mix-power ";
-            for (int j = 0; j < i; j++)
-                exec += outDir + "audio_tmp/padded" + j + ".wav ";
-            exec += outputFilename;
-            Exec.exec(exec);
+            fingerprint += JobManifest.fingerprintFile(filenames.get(j))
+                + "+" + padding.get(j) + ";";
         }
-        else
+        audioFingerprint = JobManifest.hash(fingerprint);
+        boolean audioCompleted = manifest.isCompleted(
+            "audio", audioFingerprint, outputFilename);
+
+        if (!audioCompleted)
+            Exec.exec("mkdir -p " + outDir + "audio_tmp");
+
+        final List<String> paddedFilenames = new ArrayList<String>();
+        List<TaskNode> paddingNodes = new ArrayList<TaskNode>();
+        for (int j = 0; j < filenames.size(); j++)
         {
-            // nothing to mix
-            Exec.execArray("mv",
-                           outDir + "audio_tmp/padded0.wav",
-                           outputFilename);
+            final String filename = filenames.get(j);
+            final String paddedFilename
+                = outDir + "audio_tmp/padded" + j + ".wav";
+            // the first file is just converted to wav, the rest need padding
+            final long pad = j == 0 ? 0 : padding.get(j);
+
+            paddedFilenames.add(paddedFilename);
+            if (audioCompleted)
+                continue;
+
+            paddingNodes.add(taskGraph.addTask(
+                "Padding audio " + filename,
+                manifest.checkpoint(
+                    "audio " + j,
+                    JobManifest.hash(
+                        JobManifest.fingerprintFile(filename) + "+" + pad),
+                    paddedFilename,
+                    new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                            throws Exception
+                        {
+                            if (pad == 0)
+                                Exec.exec("sox " + filename + " " + paddedFilename);
+                            else
+                                Exec.exec("sox " + filename + " " + paddedFilename
+                                          + " pad " + Utils.millisToSeconds(pad));
+                            return null;
+                        }
+                    }),
+                audioTaskQueue,
+                Collections.<TaskNode>emptyList()));
         }
 
-        Exec.exec("rm -rf " + outDir + "audio_tmp");
+        return taskGraph.addTask(
+            "Mixing audio",
+            manifest.checkpoint(
+                "audio", audioFingerprint, outputFilename,
+                new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws Exception
+                    {
+                        if (paddedFilenames.size() > 1)
+                        {
+                            String exec = "sox --combine mix-power ";
+                            for (String paddedFilename : paddedFilenames)
+                                exec += paddedFilename + " ";
+                            exec += outputFilename;
+                            Exec.exec(exec);
+                        }
+                        else
+                        {
+                            // nothing to mix
+                            Exec.execArray("mv",
+                                           paddedFilenames.get(0),
+                                           outputFilename);
+                        }
 
-        return firstAudioFileInstant;
+                        Exec.exec("rm -rf " + outDir + "audio_tmp");
+                        return null;
+                    }
+                }),
+            audioTaskQueue,
+            paddingNodes);
     }
 
     /**
-     * Extracts a list of <tt>RecorderEvent</tt> with a specific media type
-     * from JSON format.
-     * @param json the JSON object containing all events in the recorder
-     * metadata format.
+     * Extracts the events with a specific media type from the metadata,
+     * adding the <tt>RECORDING_ENDED</tt> events of video files.
+     * @param metadata the events read from the metadata file, by section.
      * @param mediaType the media type specifying which events to extract.
-     * @return A list of <tt>RecorderEvent</tt>, ordered by "instant".
+     * @return the events, ordered by instant.
      */
-    private static List<RecorderEvent> extractEvents(JSONObject json,
-                                                     MediaType mediaType)
+    private EventTimeline extractEvents(
+            Map<String, EventTimeline> metadata,
+            MediaType mediaType)
+        throws InterruptedException
     {
-        Object array = json.get(mediaType.toString());
-        if (array == null || !(array instanceof JSONArray))
+        EventTimeline events = metadata.get(mediaType.toString());
+        if (events == null)
         {
             log("Failed to extract events from metadata, mediaType="
-                        + mediaType + "; json:\n" +json.toJSONString());
+                        + mediaType + "; sections: " + metadata.keySet());
             return null;
         }
 
-        List<RecorderEvent> eventList = new LinkedList<RecorderEvent>();
-        for (Object o : (JSONArray) array)
+        // For video, we generate RECORDING_ENDED events on our own, based on
+        // the actual length of the video files. The durations are
+        // calculated in parallel on the task threads (which are shared with
+        // the other jobs), and the events are completed when all of them
+        // are known.
+        boolean video = MediaType.VIDEO.equals(mediaType);
+        Map<Integer, FutureTask<Long>> durations
+            = new HashMap<Integer, FutureTask<Long>>();
+        try
         {
-            RecorderEvent event = new RecorderEvent((JSONObject) o);
-            MediaType eventMediaType = event.getMediaType();
-            Type eventType = event.getType();
+            for (int i = 0; video && i < events.size(); i++)
+            {
+                if (events.getType(i) != Type.RECORDING_STARTED)
+                    continue;
 
-            // For video, we generate RECORDING_ENDED events on our own, based
-            // on the actual length of the video files.
-            if (MediaType.VIDEO.equals(eventMediaType))
+                final String filename = events.getFilename(i);
+                FutureTask<Long> duration
+                    = new FutureTask<Long>(new Callable<Long>()
+                    {
+                        @Override
+                        public Long call()
+                            throws Exception
+                        {
+                            return getVideoDurationMillis(filename);
+                        }
+                    });
+                durations.put(i, duration);
+                taskQueue.execute(duration);
+            }
+
+            EventTimeline result = new EventTimeline();
+            for (int i = 0; i < events.size(); i++)
             {
-                if (Type.RECORDING_ENDED.equals(eventType))
+                Type type = events.getType(i);
+                if (video && type == Type.RECORDING_ENDED)
                     continue;
-                else if (Type.RECORDING_STARTED.equals(eventType))
+
+                Future<Long> duration = durations.get(i);
+                if (duration != null)
                 {
-                    //Insert a RECORDING_ENDED event for this file
+                    long durationMillis;
                     try
                     {
-                        long duration = getVideoDurationMillis(event.getFilename());
-                        if (duration == -1)
-                        {
-                            // Failed to calculate the duration of the video.
-                            // Drop the RECORDING_STARTED event as well
-                            log("Failed to calculate video duration for "
-                                        + event.getFilename() + ". Ignoring "
-                                        + "the file");
-                            continue;
-                        }
-                        RecorderEvent newEndedEvent = new RecorderEvent();
-                        newEndedEvent.setType(Type.RECORDING_ENDED);
-                        newEndedEvent.setInstant(event.getInstant() + duration);
-                        newEndedEvent.setMediaType(MediaType.VIDEO);
-                        newEndedEvent.setSsrc(event.getSsrc());
-                        newEndedEvent.setFilename(event.getFilename());
-                        eventList.add(newEndedEvent);
+                        durationMillis = duration.get();
                     }
-                    catch (Exception e)
+                    catch (ExecutionException ee)
                     {
                         log("Failed to insert RECORDING_ENDED event: "
-                            + e);
+                            + ee.getCause());
                         return null; // is it safe to continue here?
                     }
 
-                }
-            }
-
-            eventList.add(event);
-        }
+                    if (durationMillis == -1)
+                    {
+                        // Failed to calculate the duration of the video.
+                        // Drop the RECORDING_STARTED event as well
+                        log("Failed to calculate video duration for "
+                                    + events.getFilename(i) + ". Ignoring "
+                                    + "the file");
+                        continue;
+                    }
 
+                    //Insert a RECORDING_ENDED event for this file
+                    result.add(events, i, Type.RECORDING_ENDED,
+                               events.getInstant(i) + durationMillis);
+                }
 
-        Collections.sort(eventList, new Comparator<RecorderEvent>() {
-            @Override
-            public int compare(RecorderEvent o1, RecorderEvent o2)
-            {
-                return (int) (o1.getInstant() - o2.getInstant());
+                result.add(events, i);
             }
-        });
 
-        return eventList;
+            result.sort();
+            return result;
+        }
+        finally
+        {
+            // The probes which haven't run yet are not needed any more.
+            for (FutureTask<Long> duration : durations.values())
+                duration.cancel(true);
+        }
     }
 
     /**
@@ -584,16 +1722,54 @@ public class PostProcessing
     }
     
     /**
-     * Extracts duration of a video file using ffprobe
-     * @return the duration of the webm file <tt>filename</tt> in milliseconds.
+     * Extracts duration of a video file, using {@link #probeCache} if the
+     * file has been probed before.
+     * @return the duration of the webm file <tt>filename</tt> in milliseconds,
+     * or -1 if it could not be calculated (e.g. the file is broken).
      * @param filename the video file which duration is about to be extracted
      * @throws InterruptedException 
      * @throws IOException 
      */
-    private static long getVideoDurationMillis(String filename)
+    private long getVideoDurationMillis(String filename)
+            throws IOException, InterruptedException
+    {
+        File file = new File(inDir + filename);
+        VideoFileInfo info = probeCache.get(filename, file);
+        if (info == null)
+        {
+            info = probeVideoFile(filename);
+            if (info == null)
+                return -1;
+            probeCache.put(filename, file, info);
+        }
+        return info.getDurationMillis();
+    }
+
+    /**
+     * Reads the duration (and if possible other information) of a video
+     * file.
+     * @param filename the video file, relative to the input directory.
+     * @return the information about the file, or <tt>null</tt> if it could
+     * not be read (e.g. the file is broken).
+     * @throws InterruptedException 
+     * @throws IOException 
+     */
+    private VideoFileInfo probeVideoFile(String filename)
             throws IOException, InterruptedException {
         long videoDuration = 0;
-        if (Config.USE_MKVINFO)
+        if (Config.USE_WEBM_READER)
+        {
+            try
+            {
+                return WebmReader.read(new File(inDir + filename));
+            }
+            catch (IOException ioe)
+            {
+                log("Invalid video file " + filename + ": " + ioe.getMessage());
+                return null;
+            }
+        }
+        else if (Config.USE_MKVINFO)
         {
             String exec = "mkvinfo -v -s " + filename
                     + " | tail -n 1 | awk '{print $6;}'";
@@ -604,7 +1780,7 @@ public class PostProcessing
             if (ret != 0)
             {
                 log("Failed to extract file duration for " + filename);
-                return -1;
+                return null;
             }
 
             BufferedReader reader
@@ -613,7 +1789,9 @@ public class PostProcessing
         }
         else
         {
-            String videoInfoFilename = outDir + "video_info.txt";
+            // Files are probed in parallel, so each needs its own output.
+            String videoInfoFilename = outDir
+                + Utils.trimFileExtension(filename) + "_video_info.txt";
 
             //note: this is slow
             String exec = "ffprobe -v quiet -print_format json=c=1 -show_frames " +
@@ -633,13 +1811,17 @@ public class PostProcessing
             }
         }
 
-        return videoDuration;
+        return new VideoFileInfo(videoDuration);
     }
 
     /**
      * Prevent small videos from showing
+     * @param activeParticipants the list of active participants.
+     * @return the list of participants to show.
      */
-    private static void removeSmallVideosIfDisabled() {
+    private static List<ParticipantInfo> removeSmallVideosIfDisabled(
+            List<ParticipantInfo> activeParticipants)
+    {
         for (ParticipantInfo participant : activeParticipants)
         {
             if (participant.isCurrentlySpeaking && 
@@ -650,12 +1832,13 @@ public class PostProcessing
                 break;
             }
         }
+        return activeParticipants;
     }
 
     /** Encodes the result video in the chosen file format 
      * @throws InterruptedException 
      * @throws IOException */
-    private static String encodeResultVideo(String inputFilename)
+    private String encodeResultVideo(String inputFilename)
         throws IOException, InterruptedException 
     {
         String outputFilename
@@ -682,102 +1865,412 @@ public class PostProcessing
         return null;
     }
 
-    /** Decodes an input video file and encodes it using MJPEG
+    /** Decodes a range of an input video file and encodes it using MJPEG
+     * @param file the video file, relative to the input directory.
+     * @param start the offset in the file at which to start.
+     * @param duration the duration of the range, or -1 to decode to the end
+     * of the file.
+     * @param decodedFile the decoded file, relative to the output directory.
      */
-    private static void decodeParticipantVideoFile(String participantFileName) 
+    private void decodeParticipantVideoFile(String file,
+                                            long start,
+                                            long duration,
+                                            String decodedFile,
+                                            boolean fadeIn)
         throws IOException, InterruptedException 
     {
-        String fadeFilter = "";
-        if (hasProcessedEvents) 
+        String fadeFilter = "fade=in:st=0:d=1:color=black";
+
+        List<String> command = new ArrayList<String>();
+        command.add(Config.FFMPEG);
+        command.add("-y");
+        command.add("-vcodec");
+        command.add("libvpx");
+        command.add("-threads");
+        command.add(String.valueOf(Config.FFMPEG_TASK_THREADS));
+
+        // Seeking before the input is fast, and the decoded file starts at
+        // the start of the range.
+        if (start > 0)
         {
-            fadeFilter = "-vf fade=in:st=0:d=1:color=black ";
+            command.add("-ss");
+            command.add(Utils.millisToSeconds(start));
         }
-        
-        Exec.exec(
-            Config.FFMPEG + " -y -vcodec libvpx -i " + inDir + participantFileName +
-            " -vcodec mjpeg -cpu-used " + Config.FFMPEG_CPU_USED
-            //+ " -threads " + Config.FFMPEG_THREADS
-            + " -an -q:v " + Config.QUALITY_LEVEL + " " +
-            "-r " + Config.OUTPUT_FPS + " " +
-            fadeFilter + outDir + Utils.trimFileExtension(participantFileName) + ".mov");
+        if (duration != -1)
+        {
+            command.add("-t");
+            command.add(Utils.millisToSeconds(duration));
+        }
+        command.add("-i");
+        command.add(inDir + file);
+
+        if (fadeIn)
+        {
+            command.add("-vf");
+            command.add(fadeFilter);
+        }
+        addDecodeOutputOptions(command);
+        command.add(outDir + decodedFile);
+
+        Exec.execList(command);
+    }
+
+    /**
+     * Adds the options of an output of a decoding command.
+     * @param command the command.
+     */
+    private static void addDecodeOutputOptions(List<String> command)
+    {
+        command.addAll(Arrays.asList(
+            "-vcodec", "mjpeg",
+            "-cpu-used", String.valueOf(Config.FFMPEG_CPU_USED),
+            "-threads", String.valueOf(Config.FFMPEG_TASK_THREADS),
+            "-an",
+            "-q:v", String.valueOf(Config.QUALITY_LEVEL),
+            "-r", String.valueOf(Config.OUTPUT_FPS)));
+    }
+
+    /**
+     * Joins decoded chunks into a single file. The MJPEG frames are copied,
+     * so this is much faster than decoding. The chunks are removed
+     * afterwards.
+     * @param chunkFiles the decoded chunks, relative to the output
+     * directory, in order.
+     * @param decodedFile the file to create, relative to the output
+     * directory.
+     */
+    private void joinChunks(List<String> chunkFiles, String decodedFile)
+        throws IOException, InterruptedException
+    {
+        // The names in the list are relative to the list, which is next to
+        // the chunks. They are quoted, and a quote is written as '\''.
+        String listFilename
+            = outDir + Utils.trimFileExtension(decodedFile) + "_chunks.txt";
+        PrintWriter writer = new PrintWriter(listFilename);
+        try
+        {
+            for (String chunkFile : chunkFiles)
+            {
+                String name = new File(chunkFile).getName();
+                writer.println("file '" + name.replace("'", "'\\''") + "'");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        Exec.exec(Config.FFMPEG + " -y -f concat -i " + listFilename
+                      + " -c copy " + outDir + decodedFile);
+
+        new File(listFilename).delete();
+        for (String chunkFile : chunkFiles)
+            new File(outDir + chunkFile).delete();
     }
 
-    private static void decodeParticipantVideos(List<RecorderEvent> videoEvents)
+    /**
+     * Adds tasks to {@link #taskGraph} which decode the chunks of a range in
+     * parallel, and a task which joins them into the decoded file of the
+     * range.
+     * @param step the range.
+     * @param fingerprint the fingerprint of the decoded file of the range.
+     * @param fadeIn whether the video should fade in.
+     * @param priority the priority of the tasks.
+     * @return the node of the task which joins the chunks.
+     */
+    private TaskNode decodeChunks(final DecodeStep step,
+                                  String fingerprint,
+                                  final boolean fadeIn,
+                                  double priority)
     {
-        for (RecorderEvent event : videoEvents)
+        String stepName = "decode " + step.decodedFile;
+        String decodedFilename = outDir + step.decodedFile;
+        final List<String> chunkFiles = new ArrayList<String>();
+        final List<TaskNode> chunkNodes = new ArrayList<TaskNode>();
+
+        // The chunks are removed once they are joined, so they are only
+        // decoded if the range needs to be.
+        if (!manifest.isCompleted(stepName, fingerprint, decodedFilename))
         {
-            if (event.getType() == Type.RECORDING_STARTED)
+            for (int i = 0; i < step.chunks.size(); i++)
             {
-                final String filename = event.getFilename();
-                decodingTaskQueue.execute(new Runnable() {
+                final String chunkFile
+                    = Utils.trimFileExtension(step.decodedFile)
+                        + "_chunk" + i + ".mov";
+                final long chunkStart = step.chunks.get(i);
+                final long chunkDuration = step.getChunkDuration(i);
+                final boolean chunkFadeIn = fadeIn && i == 0;
+                chunkFiles.add(chunkFile);
+                chunkNodes.add(taskGraph.addTask(
+                    "Decoding chunk " + i + " of " + step,
+                    manifest.checkpoint(
+                        "decode " + chunkFile,
+                        JobManifest.hash(fingerprint + ";chunk=" + i),
+                        outDir + chunkFile,
+                        new Callable<Void>()
+                        {
+                            @Override
+                            public Void call()
+                                throws Exception
+                            {
+                                decodeParticipantVideoFile(
+                                    step.file,
+                                    chunkStart,
+                                    chunkDuration,
+                                    chunkFile,
+                                    chunkFadeIn);
+                                return null;
+                            }
+                        }),
+                    priority,
+                    Collections.<TaskNode>emptyList()));
+            }
+        }
 
+        return taskGraph.addTask(
+            "Joining the chunks of " + step,
+            manifest.checkpoint(
+                stepName, fingerprint, decodedFilename,
+                new Callable<Void>()
+                {
                     @Override
-                    public void run() {
-                        try {
-                            decodeParticipantVideoFile(filename);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                    public Void call()
+                        throws Exception
+                    {
+                        for (TaskNode chunkNode : chunkNodes)
+                        {
+                            if (chunkNode.isFailed())
+                                throw new IOException(
+                                    chunkNode.getName() + " failed.");
+                        }
+                        joinChunks(chunkFiles, step.decodedFile);
+
+                        // Each chunk is resampled separately, so a frame
+                        // may have been added or lost at each boundary,
+                        // which would shift the rest of the file.
+                        long expected = Math.round(
+                            step.duration * Config.OUTPUT_FPS / 1000.0);
+                        long frames = countFrames(outDir + step.decodedFile);
+                        if (frames == -1 || Math.abs(frames - expected) > 1)
+                        {
+                            log("The chunks of " + step + " were joined to "
+                                + frames + " frames instead of " + expected
+                                + ", decoding the range in one pass.");
+                            decodeParticipantVideoFile(
+                                step.file,
+                                step.start,
+                                step.wholeFile ? -1 : step.duration,
+                                step.decodedFile,
+                                fadeIn);
                         }
+                        return null;
                     }
-                });
-            }
-        }
+                }),
+            priority,
+            chunkNodes);
+    }
 
-        decodingTaskQueue.shutdown();
+    /**
+     * Counts the frames of a video file with ffprobe.
+     * @param filename the name of the file.
+     * @return the number of frames of the first video stream of the file,
+     * or -1 if it could not be read.
+     */
+    private long countFrames(String filename)
+        throws InterruptedException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add("ffprobe");
+        command.add("-v");
+        command.add("error");
+        command.add("-select_streams");
+        command.add("v:0");
+        command.add("-count_packets");
+        command.add("-show_entries");
+        command.add("stream=nb_read_packets");
+        command.add("-of");
+        command.add("csv=p=0");
+        command.add(filename);
+
+        final long[] frames = { -1 };
         try
         {
-            decodingTaskQueue.awaitTermination(Long.MAX_VALUE,
-                                               TimeUnit.NANOSECONDS);
+            Exec.execList(command, new Exec.LineListener()
+            {
+                @Override
+                public void lineRead(String line)
+                {
+                    try
+                    {
+                        frames[0] = Long.parseLong(line.trim());
+                    }
+                    catch (NumberFormatException nfe)
+                    {
+                        // Not the count.
+                    }
+                }
+            });
+        }
+        catch (IOException ioe)
+        {
+            log("Failed to count the frames of " + filename + ": " + ioe);
+            return -1;
+        }
+        catch (CommandLineExecutionException clee)
+        {
+            log("Failed to count the frames of " + filename + ": " + clee);
+            return -1;
+        }
+        return frames[0];
+    }
+
+    /**
+     * Adds a task for decoding each range of the participants' video files
+     * to {@link #taskGraph}. The ranges are decoded in the order in which
+     * the sections need them (see {@link #getDecodePriority(Integer)}).
+     * @param decodeSteps the ranges to decode.
+     * @param sections the sections, in order.
+     * @return a map between the name of a decoded file and the node in
+     * {@link #taskGraph} which produces it.
+     */
+    private Map<String, TaskNode> decodeParticipantVideos(
+            List<DecodeStep> decodeSteps,
+            List<SectionDescription> sections)
+    {
+        // The first instant at which each decoded file is shown.
+        Map<String, Integer> firstNeeded = new HashMap<String, Integer>();
+        for (SectionDescription section : sections)
+        {
+            for (ParticipantInfo participant : section.activeParticipants)
+            {
+                if (!firstNeeded.containsKey(participant.decodedFilename))
+                    firstNeeded.put(participant.decodedFilename,
+                                    section.startInstant);
+            }
         }
-        catch (InterruptedException e)
+
+        Map<String, TaskNode> decodingNodes = new HashMap<String, TaskNode>();
+        // XXX the videos of participants who join after the start should
+        // fade in, but the decoding has always started before the events
+        // are processed, so it never did.
+        final boolean fadeIn = false;
+
+        for (final DecodeStep step : decodeSteps)
         {
-            log("Faied to decode participant videos: " + e);
-            e.printStackTrace();
+            String decodedFilename = outDir + step.decodedFile;
+            String fingerprint = JobManifest.hash(
+                JobManifest.fingerprintFile(inDir + step.file)
+                    + ";range=" + step + ";chunks=" + step.chunks
+                    + ";fade=" + fadeIn + ";" + renderParameters());
+            double priority
+                = getDecodePriority(firstNeeded.get(decodedFilename));
+            if (step.chunks.size() > 1)
+            {
+                decodingNodes.put(
+                    decodedFilename,
+                    decodeChunks(step, fingerprint, fadeIn, priority));
+                continue;
+            }
+
+            TaskNode node = taskGraph.addTask(
+                "Decoding " + step,
+                manifest.checkpoint(
+                    "decode " + step.decodedFile, fingerprint,
+                    decodedFilename,
+                    new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                            throws Exception
+                        {
+                            decodeParticipantVideoFile(
+                                step.file,
+                                step.start,
+                                step.wholeFile ? -1 : step.duration,
+                                step.decodedFile,
+                                fadeIn);
+                            return null;
+                        }
+                    }),
+                priority,
+                Collections.<TaskNode>emptyList());
+
+            decodingNodes.put(decodedFilename, node);
         }
 
+        return decodingNodes;
+    }
+
+    /**
+     * Returns the priority of decoding a file. The files which are needed
+     * first are decoded first, so that the first sections can start as soon
+     * as possible, and the sections keep the threads busy while the rest of
+     * the files are decoded. The priorities are below the priorities of the
+     * sections (which are positive), so that sections which are ready run
+     * before files which they don't need.
+     * @param firstNeeded the first instant at which the file is shown, or
+     * <tt>null</tt> if it is never shown.
+     * @return the priority of decoding the file.
+     */
+    private static double getDecodePriority(Integer firstNeeded)
+    {
+        if (firstNeeded == null)
+            return Double.NEGATIVE_INFINITY;
+        return -1 - firstNeeded / 1000d;
     }
 
     /** Perform some initial tests and fail early if they fail. */
-    private static boolean sanityCheck()
+    private boolean sanityCheck()
     {
         Runtime runtime = Runtime.getRuntime();
         Process p;
         int ret;
 
-        try
+        // Nothing is executed in a dry run.
+        if (!dryRun)
         {
-            /*
-            p = runtime.exec("which phantomjs");
-            ret = p.waitFor();
-            if (ret != 0)
+            try
             {
-                System.err.println("Cannot find 'phantomjs' executable.");
-                return false;
-            }
-            */
+                /*
+                p = runtime.exec("which phantomjs");
+                ret = p.waitFor();
+                if (ret != 0)
+                {
+                    System.err.println("Cannot find 'phantomjs' executable.");
+                    return false;
+                }
+                */
 
-            p = runtime.exec("which " + Config.FFMPEG);
-            ret = p.waitFor();
-            if (ret != 0)
+                p = runtime.exec("which " + Config.FFMPEG);
+                ret = p.waitFor();
+                if (ret != 0)
+                {
+                    System.err.println("Cannot find 'ffmpeg' executable.");
+                    return false;
+                }
+
+                BufferedReader reader
+                    = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                String ffmpeg = reader.readLine();
+                System.err.println("Using ffmpeg: " + ffmpeg);
+            }
+            catch (Exception e)
             {
-                System.err.println("Cannot find 'ffmpeg' executable.");
+                e.printStackTrace();
                 return false;
             }
-
-            BufferedReader reader
-                = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String ffmpeg = reader.readLine();
-            System.err.println("Using ffmpeg: " + ffmpeg);
         }
-        catch (Exception e)
+
+        if (planInputFile != null)
         {
-            e.printStackTrace();
-            return false;
+            if (!planInputFile.exists())
+            {
+                System.err.println("Plan file " + planInputFile
+                    + " does not exist.");
+                return false;
+            }
         }
-
-        if (!new File(inDir + Config.METADATA_FILENAME).exists())
+        else if (!new File(inDir + Config.METADATA_FILENAME).exists())
         {
             System.err.println("Metadata file " + inDir + Config.METADATA_FILENAME
                 + " does not exist.");
@@ -787,7 +2280,7 @@ public class PostProcessing
         return true;
     }
 
-    private static void initLogFile()
+    private void initLogFile()
     {
         File logFile = new File(outDir + Config.LOG_FILENAME);
         boolean fail = false;
@@ -815,7 +2308,17 @@ public class PostProcessing
         }
         else
         {
-            Exec.setLogFile(logFile);
+            try
+            {
+                logWriter = Exec.createLogWriter(logFile);
+                System.err.println("Now saving logs to "
+                                       + logFile.getAbsolutePath());
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Failed to create FileWriter for log file."
+                        + " Going on without a log file. " + ioe);
+            }
         }
     }
 
@@ -823,7 +2326,7 @@ public class PostProcessing
      * Read the endpoints file.
      * @return a map between endpoint ID and a display name
      */
-    private static Map<String, String> readEndpoints()
+    private Map<String, String> readEndpoints()
     {
         Map<String, String> endpoints = new HashMap<String,String>();
 
@@ -855,4 +2358,40 @@ public class PostProcessing
 
         return endpoints;
     }
+
+    /**
+     * An <tt>Executor</tt> which runs tasks on another executor, saving the
+     * output of the commands which they execute in the log file of this job.
+     */
+    private class JobExecutor
+        implements Executor
+    {
+        private final Executor executor;
+
+        private JobExecutor(Executor executor)
+        {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(final Runnable command)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Exec.setThreadLogWriter(logWriter);
+                    try
+                    {
+                        command.run();
+                    }
+                    finally
+                    {
+                        Exec.setThreadLogWriter(null);
+                    }
+                }
+            });
+        }
+    }
 }
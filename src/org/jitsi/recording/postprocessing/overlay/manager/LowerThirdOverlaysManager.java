@@ -56,7 +56,7 @@ public class LowerThirdOverlaysManager extends OverlaysManager {
     /**
      * The currently speaking participant SSRC
      */
-    private int speakerSSRC;
+    private long speakerSSRC;
     
     @Override
     protected List<Overlay> getOverlays(ParticipantInfo participant,
@@ -40,7 +40,7 @@ public interface ActiveParticipantsManager {
      * leaving the call 
      * @param participantSSRC the SSRC of the participant that is to be removed
      */
-    public void removeParticipant(int participantSSRC);
+    public void removeParticipant(long participantSSRC);
     
     /** Updates the active participants list upon a participant 
      * becoming the active speaker
@@ -48,7 +48,7 @@ public interface ActiveParticipantsManager {
      * active speaker
      * @param eventInstant the instant the SPEAKER_CHANGED event occurred
      */
-    public void speakerChange(int newSpeakerSSRC, int eventInstant);
+    public void speakerChange(long newSpeakerSSRC, int eventInstant);
     
     /** 
      * Returns the active participants list 
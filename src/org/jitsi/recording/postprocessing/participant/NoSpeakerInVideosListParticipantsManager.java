@@ -72,7 +72,7 @@ public class NoSpeakerInVideosListParticipantsManager
     /**
      * Remove participant from the conversation
      */
-    public void removeParticipant(int participantSSRC)
+    public void removeParticipant(long participantSSRC)
     {
         if (activeParticipants.size() == 1) 
         {
@@ -164,7 +164,7 @@ public class NoSpeakerInVideosListParticipantsManager
     /**
      * Change the active speaker
      */
-    public void speakerChange(int newSpeakerSSRC, int eventInstant)
+    public void speakerChange(long newSpeakerSSRC, int eventInstant)
     {
         int activeParticipantsIndex = -1, participantsIndex = -1;
         int activeSpeakerIndex = -1;
@@ -297,7 +297,7 @@ public class NoSpeakerInVideosListParticipantsManager
      * @param eventInstant The instant of the SPEAKER_CHANGED event that led
      * to this method invocation
      */
-    private void setCurrentSpeaker(int newSpeakerSSRC, int eventInstant) 
+    private void setCurrentSpeaker(long newSpeakerSSRC, int eventInstant) 
     {
         for (ParticipantInfo participantInfo : participants) 
         {
@@ -321,7 +321,7 @@ public class NoSpeakerInVideosListParticipantsManager
      * @param participantSSRC the participant whose index we are looking for
      * @return the index of a participant in the active participants collection
      */
-    private int getActiveParticipantsIndex(int participantSSRC) 
+    private int getActiveParticipantsIndex(long participantSSRC) 
     {
         for (int i = 0; i < activeParticipants.size(); i++)
         {
@@ -339,7 +339,7 @@ public class NoSpeakerInVideosListParticipantsManager
      * @param participantSSRC the participant whose index we are looking for
      * @return the index of a participant in the participants collection
      */
-    private int findParticipantIndex(int participantSSRC)
+    private int findParticipantIndex(long participantSSRC)
     {
         for (int i = 0; i < participants.size(); i++)
         {
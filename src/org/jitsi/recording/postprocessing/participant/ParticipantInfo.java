@@ -26,7 +26,7 @@ package org.jitsi.recording.postprocessing.participant;
  *
  */
 public class ParticipantInfo implements Cloneable {
-    public int SSRC;
+    public long SSRC;
     /**
      * The name of the participant's video file
      */
@@ -66,7 +66,7 @@ public class ParticipantInfo implements Cloneable {
      */
     public boolean disableOtherVideosOnTop = false;
     
-    public ParticipantInfo(int SSRC)
+    public ParticipantInfo(long SSRC)
     {
         this.SSRC = SSRC;
     }
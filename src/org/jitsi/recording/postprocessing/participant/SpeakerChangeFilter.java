@@ -0,0 +1,224 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.participant;
+
+import java.util.*;
+
+import org.jitsi.recording.postprocessing.util.*;
+import org.jitsi.service.neomedia.recording.RecorderEvent.*;
+
+/**
+ * Removes speaker changes which would make the layout jump around, before
+ * they reach an {@link ActiveParticipantsManager}. Every speaker change
+ * starts a new section, so this also reduces the number of sections.
+ *
+ * Two rules are applied, in this order:
+ * <ul>
+ * <li>A speaker who speaks for less than the minimum interjection time (i.e.
+ * the next speaker change follows sooner than that) is ignored.</li>
+ * <li>After the speaker changes, it stays for at least the minimum dwell
+ * time. A change during that time is postponed until the dwell time has
+ * passed, and only the last such change is applied.</li>
+ * </ul>
+ *
+ * @author Boris Grozev
+ */
+public class SpeakerChangeFilter
+{
+    /** The minimum time (in milliseconds) a speaker stays on screen. */
+    private final long minDwell;
+
+    /**
+     * The minimum time (in milliseconds) a speaker has to speak in order to
+     * be shown.
+     */
+    private final long minInterjection;
+
+    /** The number of speaker changes which were removed. */
+    private int dropped = 0;
+
+    /** The number of sections which were eliminated. */
+    private int eliminatedSections = 0;
+
+    /**
+     * Initializes a new <tt>SpeakerChangeFilter</tt>.
+     * @param minDwell the minimum time (in milliseconds) a speaker stays on
+     * screen, or 0.
+     * @param minInterjection the minimum time (in milliseconds) a speaker has
+     * to speak in order to be shown, or 0.
+     */
+    public SpeakerChangeFilter(long minDwell, long minInterjection)
+    {
+        this.minDwell = minDwell;
+        this.minInterjection = minInterjection;
+    }
+
+    /**
+     * Filters the speaker changes in a timeline.
+     * @param events the events, ordered by instant.
+     * @return a new timeline with the events which remain after filtering,
+     * ordered by instant. Postponed speaker changes are replaced by new
+     * events.
+     */
+    public EventTimeline filter(EventTimeline events)
+    {
+        int size = events.size();
+        EventTimeline result = new EventTimeline();
+
+        // The instant of the next speaker change after each event, or -1.
+        long[] nextSpeakerChange = new long[size];
+        long next = -1;
+        for (int i = size - 1; i >= 0; i--)
+        {
+            nextSpeakerChange[i] = next;
+            if (events.getType(i) == Type.SPEAKER_CHANGED)
+                next = events.getInstant(i);
+        }
+
+        long currentSpeaker = -1;
+        long lastChange = Long.MIN_VALUE;
+        // The index of a change which was postponed because of the dwell
+        // time, or -1.
+        int pending = -1;
+
+        for (int i = 0; i < size; i++)
+        {
+            long instant = events.getInstant(i);
+
+            if (pending != -1 && instant >= lastChange + minDwell)
+            {
+                currentSpeaker = events.getSsrc(pending);
+                lastChange = lastChange + minDwell;
+                result.add(events, pending, Type.SPEAKER_CHANGED, lastChange);
+                pending = -1;
+            }
+
+            if (events.getType(i) != Type.SPEAKER_CHANGED)
+            {
+                result.add(events, i);
+                continue;
+            }
+
+            // Ignore short interjections.
+            if (nextSpeakerChange[i] != -1
+                    && nextSpeakerChange[i] - instant < minInterjection)
+            {
+                dropped++;
+                continue;
+            }
+
+            if (events.getSsrc(i) == currentSpeaker)
+            {
+                // The speaker came back before a postponed change.
+                if (pending != -1)
+                {
+                    pending = -1;
+                    dropped++;
+                }
+                dropped++;
+                continue;
+            }
+
+            if (instant < lastChange + minDwell)
+            {
+                if (pending != -1)
+                    dropped++;
+                pending = i;
+                continue;
+            }
+
+            currentSpeaker = events.getSsrc(i);
+            lastChange = instant;
+            result.add(events, i);
+        }
+
+        if (pending != -1)
+        {
+            result.add(events, pending, Type.SPEAKER_CHANGED,
+                       lastChange + minDwell);
+        }
+
+        eliminatedSections
+            += countSpeakerSwitches(events) - countSpeakerSwitches(result);
+        return result;
+    }
+
+    /**
+     * Counts the speaker changes in a timeline which switch to a different
+     * speaker whose video is being recorded. Each of them starts a new
+     * section, while the section planner merges the sections in which
+     * nothing visible changes (e.g. after a speaker change to a participant
+     * without a video).
+     * @param events the events, ordered by instant.
+     * @return the number of speaker changes to a different speaker.
+     */
+    private static int countSpeakerSwitches(EventTimeline events)
+    {
+        Set<Long> recording = new HashSet<Long>();
+        int count = 0;
+        long speaker = -1;
+        for (int i = 0; i < events.size(); i++)
+        {
+            long ssrc = events.getSsrc(i);
+            switch (events.getType(i))
+            {
+                case RECORDING_STARTED:
+                    recording.add(ssrc);
+                    break;
+                case RECORDING_ENDED:
+                    recording.remove(ssrc);
+                    break;
+                case SPEAKER_CHANGED:
+                    if (ssrc != speaker && recording.contains(ssrc))
+                    {
+                        speaker = ssrc;
+                        count++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of speaker changes which were removed by
+     * {@link #filter(EventTimeline)}, including the ones which were
+     * postponed and then superseded.
+     * @return the number of speaker changes which were removed.
+     */
+    public int getDroppedCount()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns the number of sections which were eliminated by
+     * {@link #filter(EventTimeline)}: the number of switches to a different
+     * speaker which were removed. It is computed from the events, so that
+     * the sections don't need to be planned without the filter.
+     * @return the number of sections which were eliminated.
+     */
+    public int getEliminatedSectionCount()
+    {
+        return eliminatedSections;
+    }
+}
@@ -74,7 +74,7 @@ public class WithSpeakerInVideosListParticipantsManager
     /**
      * Remove participant from the conversation
      */
-    public void removeParticipant(int participantSSRC)
+    public void removeParticipant(long participantSSRC)
     {
         if (activeParticipants.size() == 1) 
         {
@@ -162,7 +162,7 @@ public class WithSpeakerInVideosListParticipantsManager
     /**
      * Change the active speaker
      */
-    public void speakerChange(int newSpeakerSSRC, int eventInstant)
+    public void speakerChange(long newSpeakerSSRC, int eventInstant)
     {
         int activeParticipantsIndex = -1, participantsIndex = -1;
         
@@ -284,7 +284,7 @@ public class WithSpeakerInVideosListParticipantsManager
      * @param eventInstant The instant of the SPEAKER_CHANGED event that led
      * to this method invocation
      */
-    private void setCurrentSpeaker(int newSpeakerSSRC, int eventInstant) 
+    private void setCurrentSpeaker(long newSpeakerSSRC, int eventInstant) 
     {
         for (ParticipantInfo participantInfo : participants) 
         {
@@ -308,7 +308,7 @@ public class WithSpeakerInVideosListParticipantsManager
      * @param participantSSRC the participant whose index we are looking for
      * @return the index of a participant in the active participants collection
      */
-    private int getActiveParticipantsIndex(int participantSSRC) 
+    private int getActiveParticipantsIndex(long participantSSRC) 
     {
         for (int i = 0; i < activeParticipants.size(); i++)
         {
@@ -326,7 +326,7 @@ public class WithSpeakerInVideosListParticipantsManager
      * @param participantSSRC the participant whose index we are looking for
      * @return the index of a participant in the participants collection
      */
-    private int findParticipantIndex(int participantSSRC)
+    private int findParticipantIndex(long participantSSRC)
     {
         for (int i = 0; i < participants.size(); i++)
         {
@@ -0,0 +1,334 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing.section;
+
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.participant.*;
+
+/**
+ * An index of the spans of the participants' video files on the timeline of
+ * the output video: when each file is available (from its
+ * <tt>RECORDING_STARTED</tt> to its <tt>RECORDING_ENDED</tt> event), and
+ * when it is actually shown (as decided by the
+ * {@link ActiveParticipantsManager} while the sections were planned).
+ *
+ * The spans are kept in interval trees, so that the spans which overlap a
+ * range of instants (and the offsets in their files) can be found in
+ * logarithmic time, without replaying the events or going through the
+ * sections.
+ *
+ * @author Boris Grozev
+ */
+public class ParticipantSpans
+{
+    /** The spans during which the files are available. */
+    private final IntervalTree files;
+
+    /** The spans during which the files are shown. */
+    private final IntervalTree visible;
+
+    /** Maps a file name to its visible spans, in order. */
+    private final Map<String, List<Span>> visibleByFile
+        = new LinkedHashMap<String, List<Span>>();
+
+    /**
+     * Initializes a new <tt>ParticipantSpans</tt> instance.
+     * @param fileSpans the spans during which the files are available.
+     * @param sections the planned sections, in order, from which the spans
+     * during which the files are shown are taken.
+     */
+    public ParticipantSpans(List<Span> fileSpans,
+                            List<SectionDescription> sections)
+    {
+        files = new IntervalTree(fileSpans);
+
+        // Consecutive sections which show the same file make up a single
+        // span. A file can be shown twice in a section (e.g. the active
+        // speaker, by WithSpeakerInVideosListParticipantsManager), but it is
+        // visible once.
+        for (SectionDescription section : sections)
+        {
+            Set<String> sectionFiles = new HashSet<String>();
+            for (ParticipantInfo participant : section.activeParticipants)
+            {
+                if (!sectionFiles.add(participant.fileName))
+                    continue;
+
+                List<Span> spans = visibleByFile.get(participant.fileName);
+                if (spans == null)
+                {
+                    spans = new ArrayList<Span>();
+                    visibleByFile.put(participant.fileName, spans);
+                }
+
+                Span last = spans.isEmpty() ? null : spans.get(spans.size() - 1);
+                if (last != null && last.end == section.startInstant)
+                {
+                    spans.set(spans.size() - 1,
+                              new Span(last, last.start, section.endInstant));
+                }
+                else
+                {
+                    spans.add(new Span(participant.fileName,
+                                       participant.decodedFilename,
+                                       participant.SSRC,
+                                       participant.currentVideoFileStartInstant,
+                                       section.startInstant,
+                                       section.endInstant));
+                }
+            }
+        }
+
+        List<Span> visibleSpans = new ArrayList<Span>();
+        for (List<Span> spans : visibleByFile.values())
+        {
+            // The sections are in order and don't overlap, so neither do
+            // the spans of a file, unless a file was counted twice.
+            for (int i = 1; i < spans.size(); i++)
+            {
+                if (spans.get(i).start < spans.get(i - 1).end)
+                    throw new IllegalStateException(
+                        "Overlapping visible spans of "
+                            + spans.get(i).fileName + ": "
+                            + spans.get(i - 1) + " and " + spans.get(i));
+            }
+            visibleSpans.addAll(spans);
+        }
+        visible = new IntervalTree(visibleSpans);
+    }
+
+    /**
+     * Returns the spans during which the files are available, ordered by
+     * their start.
+     */
+    public List<Span> getFileSpans()
+    {
+        return files.getSpans();
+    }
+
+    /**
+     * Returns the spans of the files which are available during a range of
+     * instants.
+     * @param from the start of the range (inclusive).
+     * @param to the end of the range (exclusive).
+     * @return the spans which overlap <tt>[from, to)</tt>, ordered by their
+     * start.
+     */
+    public List<Span> getFiles(int from, int to)
+    {
+        return files.query(from, to);
+    }
+
+    /**
+     * Returns the spans of the files which are shown during a range of
+     * instants.
+     * @param from the start of the range (inclusive).
+     * @param to the end of the range (exclusive).
+     * @return the spans which overlap <tt>[from, to)</tt>, ordered by their
+     * start.
+     */
+    public List<Span> getVisible(int from, int to)
+    {
+        return visible.query(from, to);
+    }
+
+    /**
+     * Returns the spans during which a file is shown.
+     * @param fileName the name of the file, as in
+     * {@link ParticipantInfo#fileName}.
+     * @return the spans during which the file is shown, in order. The list
+     * is empty if the file is never shown.
+     */
+    public List<Span> getVisibleSpans(String fileName)
+    {
+        List<Span> spans = visibleByFile.get(fileName);
+        return spans == null
+            ? Collections.<Span>emptyList()
+            : Collections.unmodifiableList(spans);
+    }
+
+    /**
+     * A span of a participant's video file on the timeline of the output
+     * video.
+     */
+    public static class Span
+    {
+        /** The name of the file, as in {@link ParticipantInfo#fileName}. */
+        public final String fileName;
+
+        /**
+         * The name of the decoded file, as in
+         * {@link ParticipantInfo#decodedFilename}.
+         */
+        public final String decodedFilename;
+
+        /** The SSRC of the participant. */
+        public final long ssrc;
+
+        /** The instant at which the file starts. */
+        public final int fileStart;
+
+        /** The start of the span (inclusive). */
+        public final int start;
+
+        /** The end of the span (exclusive). */
+        public final int end;
+
+        /**
+         * Initializes a new <tt>Span</tt>.
+         */
+        public Span(String fileName,
+                    String decodedFilename,
+                    long ssrc,
+                    int fileStart,
+                    int start,
+                    int end)
+        {
+            this.fileName = fileName;
+            this.decodedFilename = decodedFilename;
+            this.ssrc = ssrc;
+            this.fileStart = fileStart;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Initializes a new <tt>Span</tt> of the same file as another span.
+         */
+        private Span(Span span, int start, int end)
+        {
+            this(span.fileName, span.decodedFilename, span.ssrc,
+                 span.fileStart, start, end);
+        }
+
+        /**
+         * Returns the offset in the file which corresponds to an instant.
+         * @param instant the instant.
+         * @return the offset in milliseconds.
+         */
+        public int getSourceOffset(int instant)
+        {
+            return instant - fileStart;
+        }
+
+        @Override
+        public String toString()
+        {
+            return fileName + "[" + start + ", " + end + ")";
+        }
+    }
+
+    /**
+     * A static interval tree. The spans are sorted by their start and the
+     * tree is implicit in the sorted array: the root of the subtree of
+     * <tt>[lo, hi)</tt> is the element in the middle, and each element
+     * holds the maximum end of its subtree, so that subtrees which end
+     * before a query can be skipped.
+     */
+    private static class IntervalTree
+    {
+        /** The spans, ordered by their start. */
+        private final List<Span> spans;
+
+        /** The starts of the spans. */
+        private final int[] starts;
+
+        /** The maximum end of the spans in the subtree of each element. */
+        private final int[] maxEnds;
+
+        private IntervalTree(List<Span> spans)
+        {
+            List<Span> sorted = new ArrayList<Span>(spans);
+            // Stable, so spans with the same start keep their order.
+            Collections.sort(sorted, new Comparator<Span>()
+            {
+                @Override
+                public int compare(Span a, Span b)
+                {
+                    return a.start < b.start ? -1 : a.start == b.start ? 0 : 1;
+                }
+            });
+            this.spans = Collections.unmodifiableList(sorted);
+
+            starts = new int[sorted.size()];
+            maxEnds = new int[sorted.size()];
+            for (int i = 0; i < starts.length; i++)
+                starts[i] = sorted.get(i).start;
+            computeMaxEnds(0, starts.length);
+        }
+
+        /**
+         * Computes {@link #maxEnds} for the subtree of <tt>[lo, hi)</tt>.
+         * @return the maximum end in the subtree.
+         */
+        private int computeMaxEnds(int lo, int hi)
+        {
+            if (lo >= hi)
+                return Integer.MIN_VALUE;
+
+            int mid = (lo + hi) >>> 1;
+            int maxEnd = Math.max(spans.get(mid).end,
+                                  Math.max(computeMaxEnds(lo, mid),
+                                           computeMaxEnds(mid + 1, hi)));
+            maxEnds[mid] = maxEnd;
+            return maxEnd;
+        }
+
+        private List<Span> getSpans()
+        {
+            return spans;
+        }
+
+        /**
+         * Returns the spans which overlap <tt>[from, to)</tt>, ordered by
+         * their start.
+         */
+        private List<Span> query(int from, int to)
+        {
+            List<Span> result = new ArrayList<Span>();
+            if (from < to)
+                query(0, starts.length, from, to, result);
+            return result;
+        }
+
+        private void query(int lo, int hi, int from, int to, List<Span> result)
+        {
+            if (lo >= hi)
+                return;
+
+            int mid = (lo + hi) >>> 1;
+            if (maxEnds[mid] <= from)
+                return; // everything in this subtree ends before the range
+
+            query(lo, mid, from, to, result);
+            if (starts[mid] < to)
+            {
+                if (spans.get(mid).end > from)
+                    result.add(spans.get(mid));
+                // The spans on the right start at or after this one.
+                query(mid + 1, hi, from, to, result);
+            }
+        }
+    }
+}
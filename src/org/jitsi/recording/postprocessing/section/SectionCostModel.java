@@ -0,0 +1,332 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.section;
+
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.*;
+
+/**
+ * Predicts how long it takes to process a section, so that the sections
+ * which take longest can be started first and the last running section
+ * (which determines when the video is complete) is a short one.
+ *
+ * The model is linear in the following features of a section: a constant
+ * (process startup), the duration, the duration multiplied by the number of
+ * participants, and the duration multiplied by the area of the tiles
+ * (relative to the area of the output). Its coefficients are fitted by
+ * least squares to the timings of the sections processed in previous runs,
+ * which are saved in {@link Config#COST_MODEL_FILE}. Older samples are
+ * gradually forgotten, so the model follows changes of the hardware. Until
+ * enough samples have been collected a fixed estimate is used.
+ *
+ * @author Boris Grozev
+ */
+public class SectionCostModel
+{
+    /** The number of features. */
+    private static final int FEATURES = 4;
+
+    /**
+     * The number of samples needed before the fitted coefficients are used.
+     */
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * The weight of the existing samples is multiplied by this factor when a
+     * new sample is added.
+     */
+    private static final double DECAY = 0.995;
+
+    /**
+     * Regularization which keeps the fit stable when some features don't
+     * vary (e.g. all samples have the same number of participants).
+     */
+    private static final double RIDGE = 1e-3;
+
+    /**
+     * The coefficients used until enough samples have been collected. Only
+     * the order of the estimates matters for scheduling, so these only need
+     * to be roughly proportional.
+     */
+    private static final double[] DEFAULT_COEFFICIENTS = { 0.5, 0.1, 0.1, 0.2 };
+
+    /** The shared instance. */
+    private static SectionCostModel instance;
+
+    /**
+     * Returns the instance shared by all jobs, loading it from
+     * {@link Config#COST_MODEL_FILE} if necessary.
+     * @return the shared instance.
+     */
+    public static synchronized SectionCostModel getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new SectionCostModel(
+                    Config.COST_MODEL_FILE == null
+                        ? null
+                        : new File(Config.COST_MODEL_FILE));
+        }
+        return instance;
+    }
+
+    /** The file in which the samples are saved, or <tt>null</tt>. */
+    private final File file;
+
+    /** The (weighted) sum of the outer products of the feature vectors. */
+    private final double[][] xtx = new double[FEATURES][FEATURES];
+
+    /**
+     * The (weighted) sum of the feature vectors multiplied by the measured
+     * processing times.
+     */
+    private final double[] xty = new double[FEATURES];
+
+    /** The number of samples. */
+    private int samples = 0;
+
+    /** The fitted coefficients, or <tt>null</tt> if not fitted yet. */
+    private double[] coefficients;
+
+    /**
+     * Initializes a new <tt>SectionCostModel</tt>, reading the samples
+     * saved in <tt>file</tt> (if it exists).
+     * @param file the file in which to save the samples, or <tt>null</tt>.
+     */
+    public SectionCostModel(File file)
+    {
+        this.file = file;
+
+        if (file != null && file.exists())
+        {
+            try
+            {
+                Properties properties = new Properties();
+                InputStream in = new FileInputStream(file);
+                try
+                {
+                    properties.load(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+
+                for (int i = 0; i < FEATURES; i++)
+                {
+                    xty[i] = Double.parseDouble(
+                            properties.getProperty("xty." + i));
+                    for (int j = 0; j < FEATURES; j++)
+                        xtx[i][j] = Double.parseDouble(
+                                properties.getProperty("xtx." + i + "." + j));
+                }
+                samples = Integer.parseInt(properties.getProperty("samples"));
+                fit();
+            }
+            catch (Exception e)
+            {
+                System.err.println("Failed to read the section cost model "
+                                       + file + ", starting over: " + e);
+                for (int i = 0; i < FEATURES; i++)
+                {
+                    xty[i] = 0;
+                    Arrays.fill(xtx[i], 0);
+                }
+                samples = 0;
+            }
+        }
+    }
+
+    /**
+     * Estimates the time it takes to process a section.
+     * @param sectionDesc the section.
+     * @return the estimated processing time of <tt>sectionDesc</tt> in
+     * seconds.
+     */
+    public synchronized double estimate(SectionDescription sectionDesc)
+    {
+        double[] c
+            = coefficients == null ? DEFAULT_COEFFICIENTS : coefficients;
+        double[] x = getFeatures(sectionDesc);
+
+        double estimate = 0;
+        for (int i = 0; i < FEATURES; i++)
+            estimate += c[i] * x[i];
+        return estimate;
+    }
+
+    /**
+     * Adds the measured processing time of a section to the model.
+     * @param sectionDesc the section.
+     * @param millis the time it took to process the section.
+     */
+    public synchronized void addSample(SectionDescription sectionDesc,
+                                       long millis)
+    {
+        double[] x = getFeatures(sectionDesc);
+        double y = millis / 1000d;
+
+        for (int i = 0; i < FEATURES; i++)
+        {
+            xty[i] = DECAY * xty[i] + x[i] * y;
+            for (int j = 0; j < FEATURES; j++)
+                xtx[i][j] = DECAY * xtx[i][j] + x[i] * x[j];
+        }
+        samples++;
+        fit();
+    }
+
+    /**
+     * Saves the samples to the file of this model, if any.
+     */
+    public synchronized void save()
+    {
+        if (file == null)
+            return;
+
+        Properties properties = new Properties();
+        for (int i = 0; i < FEATURES; i++)
+        {
+            properties.setProperty("xty." + i, Double.toString(xty[i]));
+            for (int j = 0; j < FEATURES; j++)
+                properties.setProperty("xtx." + i + "." + j,
+                                       Double.toString(xtx[i][j]));
+        }
+        properties.setProperty("samples", Integer.toString(samples));
+
+        // Write to a temporary file first, so that a crash while saving
+        // doesn't lose the samples.
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            OutputStream out = new FileOutputStream(tmp);
+            try
+            {
+                properties.store(out, "jipopro section cost model");
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Failed to rename " + tmp);
+            }
+        }
+        catch (IOException ioe)
+        {
+            System.err.println("Failed to save the section cost model " + file
+                                   + ": " + ioe);
+        }
+    }
+
+    /**
+     * Fits the coefficients to the samples, by solving the regularized
+     * normal equations with Gaussian elimination.
+     */
+    private void fit()
+    {
+        if (samples < MIN_SAMPLES)
+            return;
+
+        // The augmented matrix [xtx + RIDGE*I | xty]
+        double[][] a = new double[FEATURES][FEATURES + 1];
+        for (int i = 0; i < FEATURES; i++)
+        {
+            System.arraycopy(xtx[i], 0, a[i], 0, FEATURES);
+            a[i][i] += RIDGE;
+            a[i][FEATURES] = xty[i];
+        }
+
+        for (int col = 0; col < FEATURES; col++)
+        {
+            int pivot = col;
+            for (int row = col + 1; row < FEATURES; row++)
+            {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+                    pivot = row;
+            }
+            if (Math.abs(a[pivot][col]) < 1e-12)
+                return; // singular, keep the previous coefficients
+
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+
+            for (int row = 0; row < FEATURES; row++)
+            {
+                if (row == col)
+                    continue;
+                double f = a[row][col] / a[col][col];
+                for (int k = col; k <= FEATURES; k++)
+                    a[row][k] -= f * a[col][k];
+            }
+        }
+
+        double[] c = new double[FEATURES];
+        for (int i = 0; i < FEATURES; i++)
+            c[i] = a[i][FEATURES] / a[i][i];
+        coefficients = c;
+    }
+
+    /**
+     * Returns the features of a section.
+     * @param sectionDesc the section.
+     * @return the features of <tt>sectionDesc</tt>.
+     */
+    private static double[] getFeatures(SectionDescription sectionDesc)
+    {
+        double duration
+            = (sectionDesc.endInstant - sectionDesc.startInstant) / 1000d;
+        int participants
+            = sectionDesc.activeParticipants == null
+                ? 0 : sectionDesc.activeParticipants.size();
+
+        double area = getArea(sectionDesc.largeVideoDimension);
+        List<Dimension> small = sectionDesc.smallVideosDimensions;
+        if (small != null)
+        {
+            for (Dimension d : small)
+                area += getArea(d);
+        }
+        area /= (double) Config.OUTPUT_WIDTH * Config.OUTPUT_HEIGHT;
+
+        return new double[]
+            {
+                1,
+                duration,
+                duration * participants,
+                duration * area
+            };
+    }
+
+    private static double getArea(Dimension d)
+    {
+        return d == null ? 0 : (double) d.width * d.height;
+    }
+}
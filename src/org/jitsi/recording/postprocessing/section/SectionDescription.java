@@ -22,6 +22,7 @@ package org.jitsi.recording.postprocessing.section;
 
 import java.awt.*;
 import java.awt.geom.*;
+import java.util.*;
 //Disambiguation
 import java.util.List;
 
@@ -29,29 +30,153 @@ import org.jitsi.recording.postprocessing.layout.*;
 import org.jitsi.recording.postprocessing.participant.*;
 
 /**
- * Contains the info that is needed in order to process a single section
+ * Contains the info that is needed in order to process a single section.
+ *
+ * Instances are immutable: the participants and the layout geometry are
+ * copied when the section is created, so that a section is not affected by
+ * later changes to the participants' state (e.g. by the
+ * {@link ActiveParticipantsManager}) or by later layout calculations, and can
+ * be processed on any thread. The copies of the participants are owned by
+ * the section and must not be modified.
+ *
  * @author Vladimir Marinov
  *
  */
 public class SectionDescription {
     /** The list of participants that are active during this section */
-    public List<ParticipantInfo> activeParticipants;
+    public final List<ParticipantInfo> activeParticipants;
     
     /** The dimensions of the large video */
-    public Dimension largeVideoDimension;
+    public final Dimension largeVideoDimension;
     
     /** The dimensions of the small videos */
-    public List<Dimension> smallVideosDimensions;
+    public final List<Dimension> smallVideosDimensions;
     
     /** The positions of the small videos */
-    public List<Point2D.Double> smallVideosPositions;
+    public final List<Point2D.Double> smallVideosPositions;
     
     /** The section starting instant */
-    public int startInstant;
+    public final int startInstant;
     
     /** The section ending instant */
-    public int endInstant;
+    public final int endInstant;
     
     /** The sequence number of this section (starting with 0) */
-    public int sequenceNumber;
+    public final int sequenceNumber;
+
+    /**
+     * Initializes a new <tt>SectionDescription</tt>, copying the
+     * participants and the layout geometry.
+     * @param sequenceNumber the sequence number of the section.
+     * @param startInstant the start of the section.
+     * @param endInstant the end of the section.
+     * @param activeParticipants the participants which are shown.
+     * @param largeVideoDimension the dimensions of the large video.
+     * @param smallVideosDimensions the dimensions of the small videos.
+     * @param smallVideosPositions the positions of the small videos.
+     */
+    public SectionDescription(int sequenceNumber,
+                              int startInstant,
+                              int endInstant,
+                              List<ParticipantInfo> activeParticipants,
+                              Dimension largeVideoDimension,
+                              List<Dimension> smallVideosDimensions,
+                              List<Point2D.Double> smallVideosPositions)
+    {
+        this.sequenceNumber = sequenceNumber;
+        this.startInstant = startInstant;
+        this.endInstant = endInstant;
+
+        List<ParticipantInfo> participants = new ArrayList<ParticipantInfo>();
+        if (activeParticipants != null)
+        {
+            for (ParticipantInfo participant : activeParticipants)
+            {
+                try
+                {
+                    participants.add((ParticipantInfo) participant.clone());
+                }
+                catch (CloneNotSupportedException e)
+                {
+                    // ParticipantInfo implements Cloneable
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        this.activeParticipants = Collections.unmodifiableList(participants);
+
+        this.largeVideoDimension
+            = largeVideoDimension == null
+                ? null : new Dimension(largeVideoDimension);
+
+        List<Dimension> dimensions = new ArrayList<Dimension>();
+        if (smallVideosDimensions != null)
+        {
+            for (Dimension dimension : smallVideosDimensions)
+                dimensions.add(new Dimension(dimension));
+        }
+        this.smallVideosDimensions = Collections.unmodifiableList(dimensions);
+
+        List<Point2D.Double> positions = new ArrayList<Point2D.Double>();
+        if (smallVideosPositions != null)
+        {
+            for (Point2D.Double position : smallVideosPositions)
+                positions.add(new Point2D.Double(position.x, position.y));
+        }
+        this.smallVideosPositions = Collections.unmodifiableList(positions);
+    }
+
+    /**
+     * Initializes a new <tt>SectionDescription</tt> with the same
+     * composition as another one, but different timing.
+     */
+    private SectionDescription(SectionDescription section,
+                               int sequenceNumber,
+                               int startInstant,
+                               int endInstant)
+    {
+        this.sequenceNumber = sequenceNumber;
+        this.startInstant = startInstant;
+        this.endInstant = endInstant;
+        this.activeParticipants = section.activeParticipants;
+        this.largeVideoDimension = section.largeVideoDimension;
+        this.smallVideosDimensions = section.smallVideosDimensions;
+        this.smallVideosPositions = section.smallVideosPositions;
+    }
+
+    /**
+     * Returns a section with the same composition as this one, but different
+     * timing.
+     * @param sequenceNumber the sequence number of the new section.
+     * @param startInstant the start of the new section.
+     * @param endInstant the end of the new section.
+     * @return the new section.
+     */
+    public SectionDescription withTiming(int sequenceNumber,
+                                         int startInstant,
+                                         int endInstant)
+    {
+        return new SectionDescription(
+                this, sequenceNumber, startInstant, endInstant);
+    }
+
+    /**
+     * Returns the offset in the video file of a participant which
+     * corresponds to the start of this section.
+     * @param participant one of {@link #activeParticipants}.
+     * @return the offset in milliseconds.
+     */
+    public int getSourceOffset(ParticipantInfo participant)
+    {
+        return startInstant - participant.currentVideoFileStartInstant;
+    }
+
+    /**
+     * Returns the duration of this section.
+     * @return the duration of this section in milliseconds.
+     */
+    public int getDuration()
+    {
+        return endInstant - startInstant;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.section;
+
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.participant.*;
+
+/**
+ * The complete, immutable plan of the sections of the output video,
+ * computed from the recorder events before any section is processed. Since
+ * the sections don't share state with the planner (see
+ * {@link SectionDescription}), the plan can be computed while the input
+ * videos are being decoded, and its sections can be handed to any thread.
+ *
+ * @author Boris Grozev
+ */
+public class SectionPlan
+{
+    /** The sections, in order. */
+    private final List<SectionDescription> sections;
+
+    /**
+     * Initializes a new <tt>SectionPlan</tt>.
+     * @param sections the sections, in order.
+     */
+    public SectionPlan(List<SectionDescription> sections)
+    {
+        this.sections = Collections.unmodifiableList(
+                new ArrayList<SectionDescription>(sections));
+    }
+
+    /**
+     * Returns the sections of this plan.
+     * @return the sections of this plan, in order.
+     */
+    public List<SectionDescription> getSections()
+    {
+        return sections;
+    }
+
+    /**
+     * Returns the total duration of this plan.
+     * @return the duration from the start of the first section to the end of
+     * the last one, in milliseconds.
+     */
+    public int getDuration()
+    {
+        if (sections.isEmpty())
+            return 0;
+        return sections.get(sections.size() - 1).endInstant
+            - sections.get(0).startInstant;
+    }
+
+    /**
+     * Checks this plan for problems which would result in a broken video:
+     * sections which are not numbered consecutively, overlap or leave gaps,
+     * are empty, have no active speaker, or start before the beginning of a
+     * participant's video.
+     * @return a list of descriptions of the problems, which is empty if the
+     * plan is valid.
+     */
+    public List<String> validate()
+    {
+        List<String> problems = new LinkedList<String>();
+        SectionDescription previous = null;
+
+        for (int i = 0; i < sections.size(); i++)
+        {
+            SectionDescription section = sections.get(i);
+            String name = "Section " + section.sequenceNumber;
+
+            if (section.sequenceNumber != i)
+                problems.add(name + " is at position " + i + ".");
+            if (section.getDuration() <= 0)
+                problems.add(name + " has a duration of "
+                                 + section.getDuration() + "ms.");
+            if (previous != null
+                    && previous.endInstant != section.startInstant)
+                problems.add(name + " starts at " + section.startInstant
+                                 + ", but the previous section ends at "
+                                 + previous.endInstant + ".");
+
+            boolean hasSpeaker = false;
+            for (ParticipantInfo participant : section.activeParticipants)
+            {
+                hasSpeaker |= participant.isCurrentlySpeaking;
+                if (section.getSourceOffset(participant) < 0)
+                    problems.add(name + " starts before the video "
+                                     + participant.fileName + ".");
+            }
+            if (!hasSpeaker)
+                problems.add(name + " has no active speaker.");
+
+            previous = section;
+        }
+
+        return problems;
+    }
+}
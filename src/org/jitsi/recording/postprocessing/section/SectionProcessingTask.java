@@ -127,9 +127,8 @@ public class SectionProcessingTask
             exec += sectionDesc.activeParticipants.get(i).decodedFilename;
             exec += " -vcodec copy -ss ";
             exec += Utils.millisToSeconds(
-                    startInstant -
-                            sectionDesc.activeParticipants.
-                                    get(i).currentVideoFileStartInstant);
+                    sectionDesc.getSourceOffset(
+                            sectionDesc.activeParticipants.get(i)));
             exec += " -t ";
             exec += Utils.millisToSeconds(endInstant - startInstant);
             exec += " ";
@@ -199,7 +198,10 @@ public class SectionProcessingTask
             {
                 // small video for the active speaker
                 useVideo = false;
-                String imageFilename  = getImage(participant.username,
+                String imageFilename  = getImage(resourcesDir,
+                                                 workDir,
+                                                 "participant-name",
+                                                 participant.username,
                                                  dimension.width+1,
                                                  dimension.height);
 
@@ -258,7 +260,7 @@ public class SectionProcessingTask
         exec.add("-cpu-used");
         exec.add(String.valueOf(Config.FFMPEG_CPU_USED));
         exec.add("-threads");
-        exec.add(1 + "");
+        exec.add(Integer.toString(Config.FFMPEG_TASK_THREADS));
         exec.add("-q:v");
         exec.add(Integer.toString(Config.QUALITY_LEVEL));
         exec.add("-vf");
@@ -277,12 +279,28 @@ public class SectionProcessingTask
        //Exec.exec("rm -rf " + workDir);
     }
 
-    private String getImage(String displayName,
-                            int width,
-                            int height)
+    /**
+     * Renders an image with the name of a participant, which is shown in the
+     * small video of the active speaker instead of a second copy of their
+     * video.
+     * @param resourcesDir the directory containing the resource files.
+     * @param workDir the directory in which to save the image.
+     * @param name the name of the image file, without an extension.
+     * @param displayName the name of the participant.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @return the name of the image file, or <tt>null</tt> if it could not
+     * be created.
+     */
+    static String getImage(String resourcesDir,
+                           String workDir,
+                           String name,
+                           String displayName,
+                           int width,
+                           int height)
     {
         String html = "";
-        String htmlFilename = workDir + "participant-name.html";
+        String htmlFilename = workDir + name + ".html";
 
         try
         {
@@ -346,7 +364,7 @@ public class SectionProcessingTask
             exec.add("phantomjs");
             exec.add(resourcesDir + "js/rasterize.js");
             exec.add(htmlFilename);
-            exec.add(workDir + "participant-name.bmp");
+            exec.add(workDir + name + ".bmp");
             exec.add(width + "px*" + height + "px");
             Exec.execList(exec);
         }
@@ -356,6 +374,6 @@ public class SectionProcessingTask
                                        + " not using an image: " + e);
             return null;
         }
-        return workDir + "participant-name.bmp";
+        return workDir + name + ".bmp";
     }
 }
@@ -130,7 +130,7 @@ public class SectionProcessingTaskNoTrimImpl
 
         String activeSeek
                 = Utils.millisToSeconds(
-                startInstant - activeParticipant.currentVideoFileStartInstant);
+                sectionDesc.getSourceOffset(activeParticipant));
 
         List<String> exec = new LinkedList<String>();
         exec.add(Config.FFMPEG);
@@ -162,7 +162,7 @@ public class SectionProcessingTaskNoTrimImpl
 
             String seek
                     = Utils.millisToSeconds(
-                    startInstant - p.currentVideoFileStartInstant);
+                    sectionDesc.getSourceOffset(p));
 
             //TODO: check for active's small video here, and replace it with an image
             exec.add("-itsoffset");
@@ -185,7 +185,7 @@ public class SectionProcessingTaskNoTrimImpl
         exec.add("-cpu-used");
         exec.add(String.valueOf(Config.FFMPEG_CPU_USED));
         exec.add("-threads");
-        exec.add(1 + "");
+        exec.add(Integer.toString(Config.FFMPEG_TASK_THREADS));
         exec.add("-q:v");
         exec.add(Integer.toString(Config.QUALITY_LEVEL));
 
@@ -0,0 +1,436 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing.section;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.io.*;
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.*;
+import org.jitsi.recording.postprocessing.participant.*;
+import org.jitsi.recording.postprocessing.util.*;
+
+/**
+ * A {@link Runnable} instance capable of rendering a whole call, given the
+ * list of its {@link SectionDescription}s, with a single ffmpeg process.
+ *
+ * Instead of producing an intermediate file for each section and
+ * concatenating them, the output is composed of a fixed number of "slots"
+ * (one for the large video and one for each small video). Each slot selects
+ * one of the participant videos with a <tt>streamselect</tt> filter, scales
+ * it with a <tt>scale</tt> filter and places it with an <tt>overlay</tt>
+ * filter. A <tt>sendcmd</tt> timeline changes the selected video, size,
+ * position and visibility of each slot at the start of every section.
+ *
+ * The participant videos are padded so that each of them spans the whole
+ * timeline, which means that the time in the timeline is the same for all
+ * inputs and no per-section seeking is needed.
+ *
+ * Like {@link SectionProcessingTask}, the small video of the active speaker
+ * shows an image with their name, which is an additional input of the
+ * slots. The logo is placed at the top left corner of the large video.
+ *
+ * @author Boris Grozev
+ */
+public class TimelineRenderingTask
+    implements Runnable
+{
+    /** The descriptions of the sections of the call, in order. */
+    private final List<SectionDescription> sections;
+
+    /** The directory where temporary files will be saved. */
+    private final String outDir;
+
+    /** The directory containing the resource files. */
+    private final String resourcesDir;
+
+    /** The name of the file where the result will be saved. */
+    private final String outputFilename;
+
+    /**
+     * The images with the names of participants, by name and size, or
+     * <tt>null</tt> values for the images which could not be created.
+     */
+    private final Map<String, String> images = new HashMap<String, String>();
+
+    public TimelineRenderingTask(List<SectionDescription> sections,
+                                 String outDir,
+                                 String resourcesDir,
+                                 String outputFilename)
+    {
+        this.sections = sections;
+        this.outDir = outDir;
+        this.resourcesDir = resourcesDir + "/";
+        this.outputFilename = outputFilename;
+    }
+
+    @Override
+    public void run()
+    {
+        if (sections.isEmpty())
+        {
+            System.err.println("No sections to render.");
+            return;
+        }
+
+        try
+        {
+            render();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Renders the whole timeline with a single execution of ffmpeg.
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void render()
+        throws IOException,
+               InterruptedException
+    {
+        int timelineStart = sections.get(0).startInstant;
+        int timelineEnd = sections.get(sections.size() - 1).endInstant;
+        String duration = Utils.millisToSeconds(timelineEnd - timelineStart);
+
+        // The decoded files used in the call, mapped to their start instant,
+        // and the images, mapped to null.
+        Map<String, Integer> inputs = new LinkedHashMap<String, Integer>();
+        int slots = 0;
+        for (SectionDescription section : sections)
+        {
+            for (ParticipantInfo p : section.activeParticipants)
+            {
+                if (!inputs.containsKey(p.decodedFilename))
+                    inputs.put(p.decodedFilename,
+                               p.currentVideoFileStartInstant);
+            }
+            for (String input : getSlotInputs(section))
+            {
+                if (!inputs.containsKey(input))
+                    inputs.put(input, null);
+            }
+            slots = Math.max(slots, section.activeParticipants.size());
+        }
+        List<String> inputFilenames = new ArrayList<String>(inputs.keySet());
+
+        String commandsFilename = outDir + "timeline.cmd";
+        writeCommands(commandsFilename, inputFilenames, timelineStart);
+
+        List<String> exec = new LinkedList<String>();
+        exec.add(Config.FFMPEG);
+        exec.add("-y");
+        exec.add("-loop");
+        exec.add("1");
+        exec.add("-framerate");
+        exec.add(Integer.toString(Config.OUTPUT_FPS));
+        exec.add("-i");
+        exec.add(resourcesDir + "background.bmp"); //[0:v]
+        exec.add("-loop");
+        exec.add("1");
+        exec.add("-framerate");
+        exec.add(Integer.toString(Config.OUTPUT_FPS));
+        exec.add("-i");
+        exec.add(resourcesDir + "logo_200x.bmp"); //[1:v]
+        for (String inputFilename : inputFilenames)
+        {
+            if (inputs.get(inputFilename) == null)
+            {
+                exec.add("-loop");
+                exec.add("1");
+                exec.add("-framerate");
+                exec.add(Integer.toString(Config.OUTPUT_FPS));
+            }
+            exec.add("-i");
+            exec.add(inputFilename); //[2:v] and on
+        }
+
+        String filter = "[0:v] fps=" + Config.OUTPUT_FPS
+                + ",trim=duration=" + duration
+                + ",sendcmd=f=" + commandsFilename + " [base0];";
+        filter += "[1:v] fps=" + Config.OUTPUT_FPS
+                + ",trim=duration=" + duration + " [logo];";
+
+        // Pad all participant videos so that they span the whole timeline,
+        // and make a copy for each slot.
+        for (int i = 0; i < inputFilenames.size(); i++)
+        {
+            Integer startInstant = inputs.get(inputFilenames.get(i));
+
+            filter += "[" + (i + 2) + ":v] fps=" + Config.OUTPUT_FPS;
+            if (startInstant != null)
+            {
+                filter += ",setpts=PTS-STARTPTS"
+                    + ",tpad=start_duration="
+                    + Utils.millisToSeconds(startInstant - timelineStart)
+                    + ":stop=-1:stop_mode=clone";
+            }
+            filter += ",trim=duration=" + duration
+                    + ",split=" + slots;
+            for (int j = 0; j < slots; j++)
+                filter += "[p" + i + "_" + j + "]";
+            filter += ";";
+        }
+
+        for (int j = 0; j < slots; j++)
+        {
+            for (int i = 0; i < inputFilenames.size(); i++)
+                filter += "[p" + i + "_" + j + "]";
+            filter += " streamselect@slot" + j
+                    + "=inputs=" + inputFilenames.size() + ":map=0"
+                    + ",scale@slot" + j + "=w=2:h=2";
+
+            filter += " [slot" + j + "scaled];";
+            filter += "[base" + j + "][slot" + j + "scaled] overlay@slot" + j
+                    + "=x=0:y=0:enable=0:eof_action=pass [base" + (j + 1)
+                    + "];";
+        }
+
+        // The logo follows the large video, whichever slot shows it.
+        filter += "[base" + slots + "][logo] overlay@logo=x="
+                + getLogoX(sections.get(0)) + ":y=30:shortest=1 [out]";
+
+        exec.add("-filter_complex");
+        exec.add(filter);
+        exec.add("-map");
+        exec.add("[out]");
+        exec.add("-t");
+        exec.add(duration);
+        if (Config.OUTPUT_FORMAT == Config.MP4_OUTPUT_FORMAT)
+        {
+            exec.add("-c:v");
+            exec.add("libx264");
+            exec.add("-pix_fmt");
+            exec.add("yuv420p");
+        }
+        else
+        {
+            exec.add("-c:v");
+            exec.add("libvpx");
+            exec.add("-cpu-used");
+            exec.add(String.valueOf(Config.FFMPEG_CPU_USED));
+            exec.add("-b:v");
+            exec.add("1M");
+        }
+        exec.add("-threads");
+        exec.add(Integer.toString(Config.TIMELINE_FFMPEG_THREADS));
+        exec.add(outputFilename);
+
+        Exec.execList(exec);
+    }
+
+    /**
+     * Writes the <tt>sendcmd</tt> timeline, which configures the slots at
+     * the start of each section.
+     * @param filename the name of the file to write to.
+     * @param inputFilenames the list of participant input files, in the order
+     * in which they are connected to the <tt>streamselect</tt> filters.
+     * @param timelineStart the instant of the start of the timeline.
+     * @throws IOException
+     */
+    private void writeCommands(String filename,
+                               List<String> inputFilenames,
+                               int timelineStart)
+        throws IOException
+    {
+        int slots = 0;
+        for (SectionDescription section : sections)
+            slots = Math.max(slots, section.activeParticipants.size());
+
+        PrintWriter writer = new PrintWriter(new FileWriter(filename));
+        try
+        {
+            for (SectionDescription section : sections)
+            {
+                String commands
+                    = "overlay@logo x " + getLogoX(section) + ", ";
+
+                List<String> slotInputs = getSlotInputs(section);
+                boolean hasSpeaker = getSpeaker(section) != null;
+                int slot = 0;
+                for (; slot < slotInputs.size(); slot++)
+                {
+                    int input = inputFilenames.indexOf(slotInputs.get(slot));
+                    if (hasSpeaker && slot == 0)
+                    {
+                        Dimension dimension = section.largeVideoDimension;
+                        commands += slotCommands(
+                            0, input,
+                            dimension.width, dimension.height,
+                            (Config.OUTPUT_WIDTH - dimension.width) / 2, 0);
+                    }
+                    else
+                    {
+                        int j = hasSpeaker ? slot - 1 : slot;
+                        Dimension dimension
+                            = section.smallVideosDimensions.get(j);
+                        Point2D.Double position
+                            = section.smallVideosPositions.get(j);
+                        commands += slotCommands(
+                            slot, input,
+                            dimension.width + 1, dimension.height,
+                            position.x, position.y);
+                    }
+                }
+
+                // Hide the slots which are not used in this section.
+                for (; slot < slots; slot++)
+                    commands += "overlay@slot" + slot + " enable 0, ";
+
+                writer.println(
+                    Utils.millisToSeconds(
+                        section.startInstant - timelineStart)
+                    + "-"
+                    + Utils.millisToSeconds(
+                        section.endInstant - timelineStart)
+                    + " [enter] "
+                    + commands.substring(0, commands.length() - 2) + ";");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the active speaker of a section.
+     * @param section the section.
+     * @return the first participant who is currently speaking, or
+     * <tt>null</tt>.
+     */
+    private static ParticipantInfo getSpeaker(SectionDescription section)
+    {
+        for (ParticipantInfo p : section.activeParticipants)
+        {
+            if (p.isCurrentlySpeaking)
+                return p;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the inputs shown in the slots during a section: the video of
+     * the active speaker (if any) in the large slot, followed by the small
+     * videos in order. The small video of the active speaker is replaced by
+     * an image with their name, if it can be created.
+     * @param section the section.
+     * @return the names of the input files, in the order of the slots.
+     */
+    private List<String> getSlotInputs(SectionDescription section)
+    {
+        List<String> slotInputs = new ArrayList<String>();
+        ParticipantInfo speaker = getSpeaker(section);
+        if (speaker != null)
+            slotInputs.add(speaker.decodedFilename);
+
+        for (int i = 0, j = 0; i < section.activeParticipants.size(); i++)
+        {
+            ParticipantInfo p = section.activeParticipants.get(i);
+            if (p == speaker)
+                continue;
+
+            String image = null;
+            if (Config.USE_PARTICIPANT_IMAGES
+                    && speaker != null
+                    && p.fileName.equals(speaker.fileName))
+            {
+                Dimension dimension = section.smallVideosDimensions.get(j);
+                image = getImage(p.username,
+                                 dimension.width + 1,
+                                 dimension.height);
+            }
+            slotInputs.add(image != null ? image : p.decodedFilename);
+            j++;
+        }
+        return slotInputs;
+    }
+
+    /**
+     * Returns an image with the name of a participant, creating it the
+     * first time it is needed.
+     * @param displayName the name of the participant.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @return the name of the image file, or <tt>null</tt> if it could not
+     * be created.
+     */
+    private String getImage(String displayName, int width, int height)
+    {
+        String key = displayName + ":" + width + "x" + height;
+        if (!images.containsKey(key))
+        {
+            images.put(key,
+                       SectionProcessingTask.getImage(
+                           resourcesDir, outDir,
+                           "timeline-name" + images.size(),
+                           displayName, width, height));
+        }
+        return images.get(key);
+    }
+
+    /**
+     * Returns the horizontal position of the logo during a section, at the
+     * top left corner of the large video.
+     * @param section the section.
+     * @return the horizontal position of the logo.
+     */
+    private static int getLogoX(SectionDescription section)
+    {
+        return (Config.OUTPUT_WIDTH - section.largeVideoDimension.width) / 2
+            + 30;
+    }
+
+    /**
+     * Returns the <tt>sendcmd</tt> commands which configure a single slot.
+     * @param slot the index of the slot.
+     * @param input the index of the participant input to show in the slot.
+     * @param width the width of the video in the slot.
+     * @param height the height of the video in the slot.
+     * @param x the horizontal position of the slot.
+     * @param y the vertical position of the slot.
+     * @return the <tt>sendcmd</tt> commands which configure the slot.
+     */
+    private static String slotCommands(int slot,
+                                       int input,
+                                       int width,
+                                       int height,
+                                       double x,
+                                       double y)
+    {
+        return "streamselect@slot" + slot + " map " + input + ", "
+            + "scale@slot" + slot + " w " + width + ", "
+            + "scale@slot" + slot + " h " + height + ", "
+            + "overlay@slot" + slot + " x " + x + ", "
+            + "overlay@slot" + slot + " y " + y + ", "
+            + "overlay@slot" + slot + " enable 1, ";
+    }
+}
@@ -0,0 +1,230 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.task;
+
+import java.util.*;
+//Disambiguation
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A fixed-size thread pool which is shared between several jobs, and which
+ * schedules their tasks fairly. Each job submits its tasks to its own queue
+ * (see {@link #newQueue(String, int)}). The threads always take a task from
+ * the non-empty queue with the highest priority, and take turns between the
+ * queues with the same priority. So a job with many tasks (e.g. a long
+ * recording) does not delay the tasks of a job which is submitted later,
+ * and a job with a higher priority gets all the threads which it can use.
+ *
+ * Tasks which are already running are never interrupted.
+ *
+ * @author Boris Grozev
+ */
+public class FairExecutor
+{
+    /**
+     * The queues which have been created and not closed, in round-robin
+     * order.
+     */
+    private final List<JobQueue> queues = new LinkedList<JobQueue>();
+
+    /** The threads which execute the tasks. */
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /** Whether {@link #shutdown()} has been called. */
+    private boolean shutdown = false;
+
+    /**
+     * Initializes a new <tt>FairExecutor</tt> and starts its threads.
+     * @param name the name of the executor, used to name its threads.
+     * @param threadCount the number of threads to use.
+     */
+    public FairExecutor(String name, int threadCount)
+    {
+        for (int i = 0; i < threadCount; i++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runTasks();
+                }
+            }, name + "-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates a new queue for the tasks of a job.
+     * @param name the name of the queue, used for logging.
+     * @param priority the priority of the queue. Tasks from a queue with a
+     * higher priority are executed before tasks from a queue with a lower
+     * priority.
+     * @return the new queue.
+     */
+    public synchronized JobQueue newQueue(String name, int priority)
+    {
+        JobQueue queue = new JobQueue(name, priority);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Stops the threads of this executor after all submitted tasks have
+     * completed.
+     */
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Executes tasks until this executor is shut down and there are no more
+     * tasks.
+     */
+    private void runTasks()
+    {
+        while (true)
+        {
+            Runnable task;
+            synchronized (this)
+            {
+                while ((task = nextTask()) == null)
+                {
+                    if (shutdown)
+                        return;
+
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            try
+            {
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                System.err.println("Task failed: " + t);
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the next task to be executed: the first task of the
+     * first non-empty queue with the highest priority. The queue is then
+     * moved to the end of the list, so that the other queues with the same
+     * priority get their turn.
+     * @return the next task, or <tt>null</tt> if all queues are empty.
+     */
+    private Runnable nextTask()
+    {
+        JobQueue next = null;
+        for (JobQueue queue : queues)
+        {
+            if (!queue.tasks.isEmpty()
+                    && (next == null || queue.priority > next.priority))
+                next = queue;
+        }
+
+        if (next == null)
+            return null;
+
+        if (!next.closed)
+        {
+            queues.remove(next);
+            queues.add(next);
+        }
+        Runnable task = next.tasks.removeFirst();
+        if (next.closed && next.tasks.isEmpty())
+            queues.remove(next);
+        return task;
+    }
+
+    /**
+     * The queue of the tasks of a single job. Implements <tt>Executor</tt>,
+     * so that it can be used with a {@link TaskGraph}.
+     */
+    public class JobQueue
+        implements Executor
+    {
+        private final String name;
+
+        private final int priority;
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        private boolean closed = false;
+
+        private JobQueue(String name, int priority)
+        {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            synchronized (FairExecutor.this)
+            {
+                if (closed)
+                    throw new RejectedExecutionException(
+                        "Queue " + name + " is closed.");
+                if (shutdown)
+                    throw new RejectedExecutionException(
+                        "The executor has been shut down.");
+
+                tasks.add(task);
+                FairExecutor.this.notify();
+            }
+        }
+
+        /**
+         * Closes this queue. The tasks which have already been submitted are
+         * still executed, but no new tasks can be submitted.
+         */
+        public void close()
+        {
+            synchronized (FairExecutor.this)
+            {
+                closed = true;
+                if (tasks.isEmpty())
+                    queues.remove(this);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+}
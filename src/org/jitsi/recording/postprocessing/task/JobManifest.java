@@ -0,0 +1,215 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing.task;
+
+import java.io.*;
+import java.math.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Records which steps of a job have completed, together with a fingerprint
+ * of the inputs and parameters of each step. The manifest is saved in a file
+ * after each completed step, so that when a job is restarted (e.g. after a
+ * crash) the steps whose fingerprints haven't changed can be skipped.
+ *
+ * @author Boris Grozev
+ */
+public class JobManifest
+{
+    /** The file in which the manifest is saved. */
+    private final File file;
+
+    /** Maps the name of a completed step to its fingerprint. */
+    private final Properties completed = new Properties();
+
+    /**
+     * Initializes a new <tt>JobManifest</tt> instance, reading the steps
+     * recorded in <tt>file</tt> (if it exists).
+     * @param file the file in which the manifest is saved.
+     */
+    public JobManifest(File file)
+    {
+        this.file = file;
+
+        if (file.exists())
+        {
+            try
+            {
+                InputStream in = new FileInputStream(file);
+                try
+                {
+                    completed.load(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Failed to read manifest " + file
+                                       + ", starting from scratch: " + ioe);
+                completed.clear();
+            }
+        }
+    }
+
+    /**
+     * Checks whether a step has completed with the given fingerprint.
+     * @param step the name of the step.
+     * @param fingerprint the fingerprint of the inputs and parameters of the
+     * step.
+     * @return <tt>true</tt> if the step has completed with
+     * <tt>fingerprint</tt>.
+     */
+    public synchronized boolean isCompleted(String step, String fingerprint)
+    {
+        return fingerprint.equals(completed.getProperty(step));
+    }
+
+    /**
+     * Records that a step has completed, and saves the manifest.
+     * @param step the name of the step.
+     * @param fingerprint the fingerprint of the inputs and parameters of the
+     * step.
+     */
+    public synchronized void markCompleted(String step, String fingerprint)
+    {
+        completed.setProperty(step, fingerprint);
+
+        // Write to a temporary file first, so that a crash while saving
+        // doesn't lose the whole manifest.
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            OutputStream out = new FileOutputStream(tmp);
+            try
+            {
+                completed.store(out, "jipopro job manifest");
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Failed to rename " + tmp);
+            }
+        }
+        catch (IOException ioe)
+        {
+            System.err.println("Failed to save manifest " + file + ": " + ioe);
+        }
+    }
+
+    /**
+     * Wraps a task so that it is skipped if its step has already completed
+     * with the same fingerprint and its output file exists, and so that the
+     * step is recorded as completed once the task succeeds.
+     * @param step the name of the step.
+     * @param fingerprint the fingerprint of the inputs and parameters of the
+     * step.
+     * @param outputFilename the file which the task produces.
+     * @param task the task to wrap.
+     * @return the wrapped task.
+     */
+    public Callable<Void> checkpoint(final String step,
+                                     final String fingerprint,
+                                     final String outputFilename,
+                                     final Callable<?> task)
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                if (isCompleted(step, fingerprint, outputFilename))
+                {
+                    System.err.println("Skipping " + step
+                                           + ", already completed.");
+                    return null;
+                }
+
+                task.call();
+
+                if (new File(outputFilename).exists())
+                    markCompleted(step, fingerprint);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Checks whether a step has completed with the given fingerprint, and
+     * its output file still exists.
+     * @param step the name of the step.
+     * @param fingerprint the fingerprint of the inputs and parameters of the
+     * step.
+     * @param outputFilename the file which the step produces.
+     * @return <tt>true</tt> if the step doesn't need to be executed again.
+     */
+    public boolean isCompleted(String step,
+                               String fingerprint,
+                               String outputFilename)
+    {
+        return isCompleted(step, fingerprint)
+            && new File(outputFilename).exists();
+    }
+
+    /**
+     * Returns a fingerprint of a file, based on its path, size and
+     * modification time.
+     * @param filename the name of the file.
+     * @return a fingerprint of the file.
+     */
+    public static String fingerprintFile(String filename)
+    {
+        File f = new File(filename);
+        return f.getAbsolutePath() + ":" + f.length() + ":"
+            + f.lastModified();
+    }
+
+    /**
+     * Returns a short fingerprint (an MD5 digest) of a string.
+     * @param s the string.
+     * @return a hex-encoded MD5 digest of <tt>s</tt>.
+     */
+    public static String hash(String s)
+    {
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(s.getBytes("UTF-8"));
+            return String.format("%032x", new BigInteger(1, digest));
+        }
+        catch (Exception e)
+        {
+            // MD5 and UTF-8 are always available.
+            throw new RuntimeException(e);
+        }
+    }
+}
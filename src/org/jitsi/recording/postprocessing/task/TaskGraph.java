@@ -0,0 +1,360 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing.task;
+
+import java.util.*;
+//Disambiguation
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Schedules tasks according to the dependencies between them. Each task is
+ * submitted to an <tt>Executor</tt> as soon as all the tasks it depends on
+ * have completed, so there are no global barriers between the different
+ * stages of the processing (e.g. a section can be processed as soon as the
+ * participant videos that it shows have been decoded, regardless of the
+ * state of any other videos).
+ *
+ * Nodes can be added while the graph is executing. A failed task does not
+ * prevent its dependents from running; they can check
+ * {@link TaskNode#isFailed()} on their dependencies if they need to.
+ *
+ * Nodes can have a priority. When more nodes are ready to run than the
+ * executor has threads, the ones with the highest priority run first (in
+ * the order in which they were added, for equal priorities).
+ *
+ * A graph can be cancelled with {@link #cancel()}, after which the tasks
+ * which haven't started are not executed (their nodes complete immediately
+ * as failed).
+ *
+ * @author Boris Grozev
+ */
+public class TaskGraph
+{
+    /** The <tt>Executor</tt> which runs the tasks. */
+    private final Executor executor;
+
+    /**
+     * Orders nodes by decreasing priority, and then by the order in which
+     * they were added.
+     */
+    private static final Comparator<TaskNode> PRIORITY_COMPARATOR
+        = new Comparator<TaskNode>()
+        {
+            @Override
+            public int compare(TaskNode n1, TaskNode n2)
+            {
+                if (n1.priority != n2.priority)
+                    return n1.priority > n2.priority ? -1 : 1;
+                return n1.sequenceNumber - n2.sequenceNumber;
+            }
+        };
+
+    /** All nodes which were added to this graph. */
+    private final List<TaskNode> nodes = new ArrayList<TaskNode>();
+
+    /**
+     * The nodes which are ready to run, but haven't started, for each
+     * executor.
+     */
+    private final Map<Executor, PriorityQueue<TaskNode>> ready
+        = new HashMap<Executor, PriorityQueue<TaskNode>>();
+
+    /** The number of nodes which have been added but haven't completed. */
+    private int pending = 0;
+
+    /** Whether this graph has been cancelled. */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Initializes a new <tt>TaskGraph</tt> instance.
+     * @param executor the <tt>Executor</tt> to use to run tasks.
+     */
+    public TaskGraph(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a task to this graph. The task is scheduled for execution as soon
+     * as all of <tt>dependencies</tt> have completed (immediately, if there
+     * are no unfinished dependencies).
+     * @param name a name for the task, used for logging.
+     * @param task the task to execute.
+     * @param executor the <tt>Executor</tt> to run the task with, or
+     * <tt>null</tt> to use the executor of this graph.
+     * @param priority the priority of the task.
+     * @param dependencies the nodes that need to complete before
+     * <tt>task</tt> can run. <tt>null</tt> elements are ignored.
+     * @return the <tt>TaskNode</tt> representing the task in this graph.
+     */
+    public TaskNode addTask(String name,
+                            Callable<?> task,
+                            Executor executor,
+                            double priority,
+                            Collection<TaskNode> dependencies)
+    {
+        TaskNode node;
+
+        synchronized (this)
+        {
+            node = new TaskNode(name, task, executor, priority, nodes.size());
+            nodes.add(node);
+            pending++;
+
+            if (dependencies != null)
+            {
+                for (TaskNode dependency : dependencies)
+                {
+                    if (dependency == null
+                            || node.dependencies.contains(dependency))
+                        continue;
+
+                    node.dependencies.add(dependency);
+                    if (!dependency.done)
+                    {
+                        node.unfinishedDependencies++;
+                        dependency.dependents.add(node);
+                    }
+                }
+            }
+
+            if (node.unfinishedDependencies > 0)
+                return node;
+        }
+
+        submit(node);
+        return node;
+    }
+
+    /**
+     * Adds a task with the default priority (0) to this graph.
+     * @see #addTask(String, Callable, Executor, double, Collection)
+     */
+    public TaskNode addTask(String name,
+                            Callable<?> task,
+                            Executor executor,
+                            Collection<TaskNode> dependencies)
+    {
+        return addTask(name, task, executor, 0, dependencies);
+    }
+
+    /**
+     * Adds a task to this graph, which is run with the executor of this
+     * graph.
+     * @see #addTask(String, Callable, Executor, double, Collection)
+     */
+    public TaskNode addTask(String name,
+                            Callable<?> task,
+                            double priority,
+                            Collection<TaskNode> dependencies)
+    {
+        return addTask(name, task, null, priority, dependencies);
+    }
+
+    /**
+     * Adds a task to this graph, which is run with the executor of this
+     * graph.
+     * @see #addTask(String, Callable, Executor, double, Collection)
+     */
+    public TaskNode addTask(String name,
+                            Callable<?> task,
+                            Collection<TaskNode> dependencies)
+    {
+        return addTask(name, task, null, 0, dependencies);
+    }
+
+    /**
+     * Adds a task to this graph, which is run with the executor of this
+     * graph.
+     * @see #addTask(String, Callable, Executor, Collection)
+     */
+    public TaskNode addTask(String name,
+                            Callable<?> task,
+                            TaskNode ... dependencies)
+    {
+        return addTask(name, task, null, 0, Arrays.asList(dependencies));
+    }
+
+    /**
+     * Adds a task to this graph, which is run with the executor of this
+     * graph.
+     * @see #addTask(String, Callable, Executor, Collection)
+     */
+    public TaskNode addTask(String name,
+                            Runnable task,
+                            TaskNode ... dependencies)
+    {
+        return addTask(name, Executors.callable(task), dependencies);
+    }
+
+    /**
+     * Blocks until all nodes which have been added to this graph have
+     * completed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void awaitCompletion()
+        throws InterruptedException
+    {
+        while (pending > 0)
+            wait();
+    }
+
+    /**
+     * Cancels the execution of this graph. Tasks which are already running
+     * are allowed to complete, but no new tasks are started.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Checks whether this graph has been cancelled.
+     * @return <tt>true</tt> if {@link #cancel()} has been called.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Returns a copy of the list of nodes in this graph, in the order in which
+     * they were added.
+     * @return the nodes in this graph.
+     */
+    public synchronized List<TaskNode> getNodes()
+    {
+        return new ArrayList<TaskNode>(nodes);
+    }
+
+    /**
+     * Returns the critical path which ends with a specific node, i.e. the
+     * chain of nodes which determined when it finished. Starting from
+     * <tt>node</tt>, the path follows the dependency which finished last.
+     * @param node the last node of the path.
+     * @return the critical path ending with <tt>node</tt>, starting with its
+     * first node.
+     */
+    public synchronized List<TaskNode> getCriticalPath(TaskNode node)
+    {
+        LinkedList<TaskNode> path = new LinkedList<TaskNode>();
+        while (node != null)
+        {
+            path.addFirst(node);
+
+            TaskNode last = null;
+            for (TaskNode dependency : node.dependencies)
+            {
+                if (last == null || dependency.endTime > last.endTime)
+                    last = dependency;
+            }
+            node = last;
+        }
+
+        return path;
+    }
+
+    /**
+     * Submits a node whose dependencies have all completed for execution.
+     * The executor runs the ready node with the highest priority, which is
+     * not necessarily <tt>node</tt>.
+     * @param node the node to submit.
+     */
+    private void submit(TaskNode node)
+    {
+        final Executor executor
+            = node.executor == null ? this.executor : node.executor;
+
+        synchronized (this)
+        {
+            PriorityQueue<TaskNode> queue = ready.get(executor);
+            if (queue == null)
+            {
+                queue = new PriorityQueue<TaskNode>(11, PRIORITY_COMPARATOR);
+                ready.put(executor, queue);
+            }
+            queue.add(node);
+        }
+
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                TaskNode next;
+                synchronized (TaskGraph.this)
+                {
+                    next = ready.get(executor).poll();
+                }
+                runNode(next);
+            }
+        });
+    }
+
+    /**
+     * Executes the task of a node and schedules the dependents of the node
+     * which become ready.
+     * @param node the node to run.
+     */
+    private void runNode(TaskNode node)
+    {
+        node.startTime = System.currentTimeMillis();
+        if (cancelled)
+        {
+            node.failed = true;
+            System.err.println("Task " + node.getName() + " cancelled.");
+        }
+        else
+        {
+            try
+            {
+                node.task.call();
+            }
+            catch (Throwable t)
+            {
+                node.failed = true;
+                System.err.println("Task " + node.getName() + " failed: " + t);
+                t.printStackTrace();
+            }
+        }
+        node.endTime = System.currentTimeMillis();
+
+        List<TaskNode> ready = new LinkedList<TaskNode>();
+        synchronized (this)
+        {
+            node.done = true;
+            for (TaskNode dependent : node.dependents)
+            {
+                if (--dependent.unfinishedDependencies == 0)
+                    ready.add(dependent);
+            }
+            node.dependents.clear();
+
+            pending--;
+            if (pending == 0)
+                notifyAll();
+        }
+
+        for (TaskNode dependent : ready)
+            submit(dependent);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing.task;
+
+import java.util.*;
+//Disambiguation
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A single unit of work in a {@link TaskGraph}. A node becomes runnable once
+ * all of the nodes it depends on have completed.
+ *
+ * @author Boris Grozev
+ */
+public class TaskNode
+{
+    /** A human readable name of this node, used for logging and timings. */
+    private final String name;
+
+    /** The work that this node performs. */
+    final Callable<?> task;
+
+    /**
+     * The <tt>Executor</tt> which runs {@link #task}, or <tt>null</tt> to use
+     * the default executor of the graph.
+     */
+    final Executor executor;
+
+    /** The nodes which depend on this node. */
+    final List<TaskNode> dependents = new LinkedList<TaskNode>();
+
+    /** The nodes which this node depends on. */
+    final List<TaskNode> dependencies = new LinkedList<TaskNode>();
+
+    /**
+     * The number of dependencies of this node which have not completed yet.
+     * Guarded by the lock of the owning {@link TaskGraph}.
+     */
+    int unfinishedDependencies = 0;
+
+    /**
+     * Whether this node has completed. Guarded by the lock of the owning
+     * {@link TaskGraph}.
+     */
+    boolean done = false;
+
+    /** Whether the execution of this node's task threw an exception. */
+    volatile boolean failed = false;
+
+    /** The time (in millis) the execution of this node's task started. */
+    volatile long startTime = -1;
+
+    /** The time (in millis) the execution of this node's task finished. */
+    volatile long endTime = -1;
+
+    /**
+     * The priority of this node. Of the nodes which are ready to run on the
+     * same executor, the ones with higher priority are run first.
+     */
+    final double priority;
+
+    /** The order in which this node was added to its graph. */
+    final int sequenceNumber;
+
+    TaskNode(String name,
+             Callable<?> task,
+             Executor executor,
+             double priority,
+             int sequenceNumber)
+    {
+        this.name = name;
+        this.task = task;
+        this.executor = executor;
+        this.priority = priority;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Returns the name of this node.
+     * @return the name of this node.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the nodes which this node depends on.
+     * @return the nodes which this node depends on.
+     */
+    public List<TaskNode> getDependencies()
+    {
+        return Collections.unmodifiableList(dependencies);
+    }
+
+    /**
+     * Returns <tt>true</tt> if the task of this node threw an exception.
+     * @return <tt>true</tt> if the task of this node threw an exception.
+     */
+    public boolean isFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * Returns the priority of this node.
+     * @return the priority of this node.
+     */
+    public double getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Returns the time (in millis) the task of this node started executing,
+     * or -1 if it hasn't started yet.
+     * @return the time the task of this node started executing.
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * Returns the time (in millis) the task of this node finished executing,
+     * or -1 if it hasn't finished yet.
+     * @return the time the task of this node finished executing.
+     */
+    public long getEndTime()
+    {
+        return endTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.util;
+
+import java.io.*;
+
+import org.jitsi.recording.postprocessing.*;
+
+/**
+ * Sizes the thread pools of Jipopro and the number of threads of the ffmpeg
+ * processes which it runs from a single CPU budget, so that the total
+ * number of busy threads matches the number of CPUs which are actually
+ * available to us (e.g. when running in a container with a CPU quota).
+ *
+ * @author Boris Grozev
+ */
+public class CpuBudget
+{
+    /** The cgroup v2 file with the CPU quota and period. */
+    private static final String CGROUP2_CPU_MAX = "/sys/fs/cgroup/cpu.max";
+
+    /** The cgroup v1 directories which may contain the CPU quota. */
+    private static final String[] CGROUP1_CPU_DIRS
+        = { "/sys/fs/cgroup/cpu/", "/sys/fs/cgroup/cpu,cpuacct/" };
+
+    /**
+     * Returns the number of CPUs available to this process: the number of
+     * processors reported by the JVM, limited by the cgroup CPU quota, if
+     * any.
+     * @return the number of CPUs available to this process.
+     */
+    public static int getAvailableCpus()
+    {
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        int quotaCpus = getCgroupCpus();
+        if (quotaCpus > 0 && quotaCpus < cpus)
+            cpus = quotaCpus;
+
+        return Math.max(1, cpus);
+    }
+
+    /**
+     * Sets the sizes of the thread pools and the number of ffmpeg threads in
+     * {@link Config} from a CPU budget. Needs to be called before the pools
+     * are created. The ffmpeg processes of all jobs share the budget (see
+     * {@link Config#MAX_FFMPEG_THREADS} and
+     * {@link Config#MAX_ENCODER_THREADS}), so jobs which run at the same
+     * time don't use more CPUs than it allows.
+     * @param cpus the number of CPUs to use, or a non-positive number to use
+     * the available CPUs (see {@link #getAvailableCpus()}).
+     */
+    public static void configure(int cpus)
+    {
+        if (cpus <= 0)
+            cpus = getAvailableCpus();
+
+        // The encoder runs throughout the processing, alongside the
+        // sections. libvpx doesn't benefit much from more than a few threads.
+        int encoderThreads = Math.max(1, Math.min(8, cpus / 4));
+        // sox is single-threaded, and only runs at the start.
+        int audioThreads = Math.max(1, Math.min(2, cpus / 4));
+        // Each task (decoding or rendering a section) is a single-threaded
+        // ffmpeg process, so the rest of the CPUs go to the task queue.
+        int taskThreads = Math.max(1, cpus - encoderThreads - audioThreads);
+
+        Config.FFMPEG_THREADS = encoderThreads;
+        Config.AUDIO_THREADS = audioThreads;
+        Config.JIPOPRO_THREADS = taskThreads;
+        Config.FFMPEG_TASK_THREADS = 1;
+        // The encoders wait for the sections, so they have a budget of their
+        // own: if they took the threads of the tasks, no section could be
+        // rendered. The encoders of all jobs share it, so a second encoder
+        // waits for the first one instead of taking more CPUs.
+        Config.MAX_FFMPEG_THREADS = taskThreads;
+        Config.MAX_ENCODER_THREADS = encoderThreads;
+        // A timeline render is a single process which does all the work.
+        Config.TIMELINE_FFMPEG_THREADS
+            = Math.max(1, cpus - audioThreads);
+
+        System.err.println("CPU budget: " + cpus + " (task threads "
+                + taskThreads + ", audio threads " + audioThreads
+                + ", encoder threads " + encoderThreads + ")");
+    }
+
+    /**
+     * Reads the CPU quota of the cgroup of this process.
+     * @return the CPU quota rounded up to a whole number of CPUs, or -1 if
+     * there is no quota or it could not be read.
+     */
+    private static int getCgroupCpus()
+    {
+        try
+        {
+            // cgroup v2: "<quota> <period>" or "max <period>"
+            String cpuMax = readLine(CGROUP2_CPU_MAX);
+            if (cpuMax != null)
+            {
+                String[] parts = cpuMax.trim().split("\\s+");
+                if (parts.length == 2 && !"max".equals(parts[0]))
+                    return toCpus(Long.parseLong(parts[0]),
+                                  Long.parseLong(parts[1]));
+                return -1;
+            }
+
+            // cgroup v1: a quota of -1 means no limit
+            for (String dir : CGROUP1_CPU_DIRS)
+            {
+                String quota = readLine(dir + "cpu.cfs_quota_us");
+                String period = readLine(dir + "cpu.cfs_period_us");
+                if (quota != null && period != null)
+                    return toCpus(Long.parseLong(quota.trim()),
+                                  Long.parseLong(period.trim()));
+            }
+        }
+        catch (NumberFormatException nfe)
+        {
+            System.err.println("Failed to parse the cgroup CPU quota: " + nfe);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Converts a CFS quota and period to a number of CPUs.
+     * @return the number of CPUs (rounded up), or -1 if there is no quota.
+     */
+    private static int toCpus(long quota, long period)
+    {
+        if (quota <= 0 || period <= 0)
+            return -1;
+        return (int) ((quota + period - 1) / period);
+    }
+
+    /**
+     * Reads the first line of a file.
+     * @param filename the name of the file.
+     * @return the first line of the file, or <tt>null</tt> if the file does
+     * not exist or could not be read.
+     */
+    private static String readLine(String filename)
+    {
+        File file = new File(filename);
+        if (!file.canRead())
+            return null;
+
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(new FileReader(file));
+            return reader.readLine();
+        }
+        catch (IOException ioe)
+        {
+            return null;
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (IOException ioe)
+                {
+                }
+            }
+        }
+    }
+}
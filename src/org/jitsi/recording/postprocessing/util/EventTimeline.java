@@ -0,0 +1,389 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.util;
+
+import java.util.*;
+
+import org.jitsi.service.neomedia.recording.*;
+import org.jitsi.service.neomedia.recording.RecorderEvent.*;
+
+/**
+ * A list of recorder events stored in columns of primitive arrays, instead
+ * of as <tt>RecorderEvent</tt> objects. Instants and SSRCs are kept as
+ * <tt>long</tt>-s, and the strings of the events (file names, endpoint IDs
+ * and descriptions) are interned, so that the events of a long recording
+ * take little memory and reading them allocates nothing.
+ *
+ * Events are added at the end and can be sorted by instant. When sorted,
+ * the events in a range of instants can be found with a binary search (see
+ * {@link #lowerBound(long)}).
+ *
+ * @author Boris Grozev
+ */
+public class EventTimeline
+{
+    /** The event types, indexed by their ordinal. */
+    private static final Type[] TYPES = Type.values();
+
+    /** Set in {@link #flags} if the aspect ratio of the video is 4:3. */
+    private static final byte FLAG_ASPECT_RATIO_4_3 = 1;
+
+    /** Set in {@link #flags} if the aspect ratio of the video is 16:9. */
+    private static final byte FLAG_ASPECT_RATIO_16_9 = 2;
+
+    /**
+     * Set in {@link #flags} if the other videos should be disabled while the
+     * participant speaks.
+     */
+    private static final byte FLAG_DISABLE_OTHER_VIDEOS_ON_TOP = 4;
+
+    /** The initial capacity of the columns. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size = 0;
+
+    private long[] instants = new long[INITIAL_CAPACITY];
+    private long[] ssrcs = new long[INITIAL_CAPACITY];
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+
+    /** The indexes in {@link #strings} of the file names, or -1. */
+    private int[] filenames = new int[INITIAL_CAPACITY];
+
+    /** The indexes in {@link #strings} of the endpoint IDs, or -1. */
+    private int[] endpointIds = new int[INITIAL_CAPACITY];
+
+    /** The indexes in {@link #strings} of the descriptions, or -1. */
+    private int[] descriptions = new int[INITIAL_CAPACITY];
+
+    /** The interned strings. */
+    private final List<String> strings = new ArrayList<String>();
+
+    /** Maps an interned string to its index in {@link #strings}. */
+    private final Map<String, Integer> stringIndexes
+        = new HashMap<String, Integer>();
+
+    /**
+     * Returns the number of events.
+     * @return the number of events.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Adds an event at the end of this timeline.
+     * @param event the event.
+     */
+    public void add(RecorderEvent event)
+    {
+        byte flag = 0;
+        if (event.getAspectRatio() == AspectRatio.ASPECT_RATIO_4_3)
+            flag |= FLAG_ASPECT_RATIO_4_3;
+        else if (event.getAspectRatio() == AspectRatio.ASPECT_RATIO_16_9)
+            flag |= FLAG_ASPECT_RATIO_16_9;
+        if (event.getDisableOtherVideosOnTop())
+            flag |= FLAG_DISABLE_OTHER_VIDEOS_ON_TOP;
+
+        add(event.getType(),
+            event.getInstant(),
+            event.getSsrc(),
+            flag,
+            intern(event.getFilename()),
+            intern(event.getEndpointId()),
+            intern(event.getParticipantDescription()));
+    }
+
+    /**
+     * Adds a copy of an event of another timeline at the end of this
+     * timeline, with a different instant and possibly a different type.
+     * @param timeline the timeline of the event to copy.
+     * @param index the index of the event in <tt>timeline</tt>.
+     * @param type the type of the new event.
+     * @param instant the instant of the new event.
+     */
+    public void add(EventTimeline timeline, int index, Type type, long instant)
+    {
+        add(type,
+            instant,
+            timeline.ssrcs[index],
+            timeline.flags[index],
+            intern(timeline.getString(timeline.filenames[index])),
+            intern(timeline.getString(timeline.endpointIds[index])),
+            intern(timeline.getString(timeline.descriptions[index])));
+    }
+
+    /**
+     * Adds a copy of an event of another timeline at the end of this
+     * timeline.
+     * @param timeline the timeline of the event to copy.
+     * @param index the index of the event in <tt>timeline</tt>.
+     */
+    public void add(EventTimeline timeline, int index)
+    {
+        add(timeline, index, timeline.getType(index),
+            timeline.instants[index]);
+    }
+
+    private void add(Type type,
+                     long instant,
+                     long ssrc,
+                     byte flag,
+                     int filename,
+                     int endpointId,
+                     int description)
+    {
+        if (size == instants.length)
+        {
+            int capacity = instants.length * 2;
+            instants = Arrays.copyOf(instants, capacity);
+            ssrcs = Arrays.copyOf(ssrcs, capacity);
+            types = Arrays.copyOf(types, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            filenames = Arrays.copyOf(filenames, capacity);
+            endpointIds = Arrays.copyOf(endpointIds, capacity);
+            descriptions = Arrays.copyOf(descriptions, capacity);
+        }
+
+        instants[size] = instant;
+        ssrcs[size] = ssrc;
+        types[size] = (byte) (type == null ? -1 : type.ordinal());
+        flags[size] = flag;
+        filenames[size] = filename;
+        endpointIds[size] = endpointId;
+        descriptions[size] = description;
+        size++;
+    }
+
+    /**
+     * Returns the index of a string in {@link #strings}, adding it if
+     * necessary.
+     * @param s the string, or <tt>null</tt>.
+     * @return the index of <tt>s</tt>, or -1 if <tt>s</tt> is <tt>null</tt>.
+     */
+    private int intern(String s)
+    {
+        if (s == null)
+            return -1;
+
+        Integer index = stringIndexes.get(s);
+        if (index == null)
+        {
+            index = strings.size();
+            strings.add(s);
+            stringIndexes.put(s, index);
+        }
+        return index;
+    }
+
+    private String getString(int index)
+    {
+        return index == -1 ? null : strings.get(index);
+    }
+
+    public long getInstant(int index)
+    {
+        return instants[index];
+    }
+
+    public long getSsrc(int index)
+    {
+        return ssrcs[index];
+    }
+
+    /**
+     * Returns the type of an event.
+     * @param index the index of the event.
+     * @return the type of the event, or <tt>null</tt> if it has no type.
+     */
+    public Type getType(int index)
+    {
+        return types[index] == -1 ? null : TYPES[types[index]];
+    }
+
+    public String getFilename(int index)
+    {
+        return getString(filenames[index]);
+    }
+
+    public String getEndpointId(int index)
+    {
+        return getString(endpointIds[index]);
+    }
+
+    public String getParticipantDescription(int index)
+    {
+        return getString(descriptions[index]);
+    }
+
+    /**
+     * Returns the aspect ratio of the video of an event.
+     * @param index the index of the event.
+     * @return the aspect ratio of the video, or <tt>null</tt> if it is not
+     * known.
+     */
+    public AspectRatio getAspectRatio(int index)
+    {
+        if ((flags[index] & FLAG_ASPECT_RATIO_4_3) != 0)
+            return AspectRatio.ASPECT_RATIO_4_3;
+        if ((flags[index] & FLAG_ASPECT_RATIO_16_9) != 0)
+            return AspectRatio.ASPECT_RATIO_16_9;
+        return null;
+    }
+
+    public boolean getDisableOtherVideosOnTop(int index)
+    {
+        return (flags[index] & FLAG_DISABLE_OTHER_VIDEOS_ON_TOP) != 0;
+    }
+
+    /**
+     * Sorts the events by instant. The sort is stable, so events with the
+     * same instant stay in the order in which they were added.
+     */
+    public void sort()
+    {
+        // The metadata is usually (almost) sorted already.
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++)
+            sorted = instants[i - 1] <= instants[i];
+        if (sorted)
+            return;
+
+        // A bottom-up merge sort of the indexes of the events, which takes
+        // from the left run on ties so that it is stable.
+        int[] order = new int[size];
+        int[] tmp = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        for (int width = 1; width < size; width *= 2)
+        {
+            for (int low = 0; low < size; low += 2 * width)
+            {
+                int mid = Math.min(low + width, size);
+                int high = Math.min(low + 2 * width, size);
+                int i = low, j = mid, k = low;
+                while (i < mid && j < high)
+                {
+                    tmp[k++]
+                        = instants[order[j]] < instants[order[i]]
+                            ? order[j++]
+                            : order[i++];
+                }
+                while (i < mid)
+                    tmp[k++] = order[i++];
+                while (j < high)
+                    tmp[k++] = order[j++];
+            }
+            int[] swap = order;
+            order = tmp;
+            tmp = swap;
+        }
+
+        long[] newInstants = new long[instants.length];
+        long[] newSsrcs = new long[instants.length];
+        byte[] newTypes = new byte[instants.length];
+        byte[] newFlags = new byte[instants.length];
+        int[] newFilenames = new int[instants.length];
+        int[] newEndpointIds = new int[instants.length];
+        int[] newDescriptions = new int[instants.length];
+        for (int i = 0; i < size; i++)
+        {
+            int j = order[i];
+            newInstants[i] = instants[j];
+            newSsrcs[i] = ssrcs[j];
+            newTypes[i] = types[j];
+            newFlags[i] = flags[j];
+            newFilenames[i] = filenames[j];
+            newEndpointIds[i] = endpointIds[j];
+            newDescriptions[i] = descriptions[j];
+        }
+        instants = newInstants;
+        ssrcs = newSsrcs;
+        types = newTypes;
+        flags = newFlags;
+        filenames = newFilenames;
+        endpointIds = newEndpointIds;
+        descriptions = newDescriptions;
+    }
+
+    /**
+     * Returns the index of the first event at or after an instant. The
+     * timeline must be sorted.
+     * @param instant the instant.
+     * @return the index of the first event whose instant is not before
+     * <tt>instant</tt>, or {@link #size()} if there is no such event.
+     */
+    public int lowerBound(long instant)
+    {
+        int low = 0, high = size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (instants[mid] < instant)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the number of events in a range of instants. The timeline
+     * must be sorted.
+     * @param from the start of the range (inclusive).
+     * @param to the end of the range (exclusive).
+     * @return the number of events with an instant in <tt>[from, to)</tt>.
+     */
+    public int count(long from, long to)
+    {
+        return Math.max(0, lowerBound(to) - lowerBound(from));
+    }
+
+    /**
+     * Returns the index of the first event of a specific type, starting at
+     * an index.
+     * @param type the type.
+     * @param from the index to start at.
+     * @return the index of the first event of type <tt>type</tt> at or
+     * after <tt>from</tt>, or -1 if there is no such event.
+     */
+    public int indexOf(Type type, int from)
+    {
+        for (int i = from; i < size; i++)
+        {
+            if (types[i] == type.ordinal())
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a string representation of an event, for logging.
+     * @param index the index of the event.
+     * @return a string representation of the event.
+     */
+    public String toString(int index)
+    {
+        return getType(index) + " @" + instants[index]
+            + " ssrc=" + ssrcs[index]
+            + (filenames[index] == -1 ? "" : " " + getFilename(index));
+    }
+}
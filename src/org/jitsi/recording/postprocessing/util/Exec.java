@@ -30,6 +30,17 @@ import java.util.*;
  * A utility class that allows to execute commands and optionally save
  * their <tt>stdout</tt> and <tt>stderr</tt> to a log file.
  *
+ * The log file can be set globally with {@link #setLogFile(File)}, or per
+ * thread with {@link #setThreadLogWriter(FileWriter)}, which allows several
+ * jobs running in the same JVM to keep separate logs.
+ *
+ * The number of threads used by the ffmpeg processes running at the same
+ * time is limited to {@link Config#MAX_FFMPEG_THREADS}, across all threads.
+ * A process counts with the largest <tt>-threads</tt> value in its command
+ * (or 1). The long-running encoders, which wait for the output of those
+ * processes, take their threads from a separate budget (see
+ * {@link #acquireEncoderThreads(int)}), so that they can't take all of it.
+ *
  * @author Boris Grozev
  */
 public class Exec
@@ -37,6 +48,76 @@ public class Exec
     private static File logFile = null;
     private static FileWriter logWriter = null;
 
+    /**
+     * The writer which the current thread uses for logs instead of
+     * {@link #logWriter}, if set. Threads started by a thread inherit its
+     * writer.
+     */
+    private static final InheritableThreadLocal<FileWriter> threadLogWriter
+        = new InheritableThreadLocal<FileWriter>();
+
+    /**
+     * The threads used by the ffmpeg processes which are executing, other
+     * than the encoders.
+     */
+    private static final ThreadBudget ffmpegThreads = new ThreadBudget();
+
+    /** The threads used by the encoders which are executing. */
+    private static final ThreadBudget encoderThreads = new ThreadBudget();
+
+    /**
+     * The total time (in milliseconds) which each thread has spent waiting
+     * for ffmpeg threads.
+     */
+    private static final ThreadLocal<long[]> ffmpegWaitTime
+        = new ThreadLocal<long[]>()
+        {
+            @Override
+            protected long[] initialValue()
+            {
+                return new long[1];
+            }
+        };
+
+    /**
+     * Creates a writer for a log file, removing the previous contents of the
+     * file.
+     * @param logFile the log file.
+     * @return the writer.
+     */
+    public static FileWriter createLogWriter(File logFile)
+        throws IOException
+    {
+        //remove the contents of the file...
+        new FileWriter(logFile).close();
+
+        return new FileWriter(logFile, true);
+    }
+
+    /**
+     * Sets the writer to be used for saving the output of commands which the
+     * current thread (and threads started by it) execute, overriding the
+     * log file set with {@link #setLogFile(File)}.
+     * @param writer the writer to use, or <tt>null</tt> to use the global
+     * log file.
+     */
+    public static void setThreadLogWriter(FileWriter writer)
+    {
+        threadLogWriter.set(writer);
+    }
+
+    /**
+     * Returns the writer used for saving the output of commands executed by
+     * the current thread.
+     * @return the writer used for saving the output of commands executed by
+     * the current thread, or <tt>null</tt>.
+     */
+    private static FileWriter getLogWriter()
+    {
+        FileWriter writer = threadLogWriter.get();
+        return writer != null ? writer : logWriter;
+    }
+
     /**
      * Sets the <tt>File</tt> instance to be used for saving the output of
      * commands which we execute.
@@ -60,11 +141,7 @@ public class Exec
             try
             {
                 Exec.logFile = logFile;
-
-                //remove the contents of the file...
-                new FileWriter(logFile).close();
-
-                Exec.logWriter = new FileWriter(logFile, true);
+                Exec.logWriter = createLogWriter(logFile);
                 System.err.println("Now saving logs to "+logFile.getAbsolutePath());
             }
             catch (IOException ioe)
@@ -154,9 +231,81 @@ public class Exec
     public static void execArray(boolean saveLog, String ... command)
         throws IOException, InterruptedException
     {
-        String commandStr = "";
-        for (String s : command)
-            commandStr += s + " ";
+        exec(Arrays.asList(command), saveLog, null);
+    }
+
+    /**
+     * Executes a command, passing each line of its <tt>stdout</tt> to
+     * <tt>listener</tt> as soon as it is read and saving its
+     * <tt>stderr</tt>. Like {@link #execArray(boolean, String...)}, ffmpeg
+     * processes are counted towards {@link Config#MAX_FFMPEG_THREADS}.
+     */
+    public static void execList(List<String> list, LineListener listener)
+        throws IOException, InterruptedException
+    {
+        exec(list, true, listener);
+    }
+
+    /**
+     * Executes a command and waits for it to finish, counting ffmpeg
+     * processes towards {@link Config#MAX_FFMPEG_THREADS}.
+     * @param command the command.
+     * @param saveLog whether to save the output of the command.
+     * @param listener the listener to pass the lines of <tt>stdout</tt> to,
+     * or <tt>null</tt> to save <tt>stdout</tt> like <tt>stderr</tt>.
+     */
+    private static void exec(List<String> command,
+                             boolean saveLog,
+                             LineListener listener)
+        throws IOException, InterruptedException
+    {
+        int threads = getFfmpegThreads(command);
+        acquireFfmpegThreads(threads);
+
+        try
+        {
+            Process p = start(command, saveLog);
+            FileWriter logWriter = saveLog ? getLogWriter() : null;
+            if (listener == null)
+            {
+                if (logWriter != null)
+                {
+                    new Thread(new Writer(p.getInputStream(), logWriter))
+                        .start();
+                    new Thread(new Writer(p.getErrorStream(), logWriter))
+                        .start();
+                }
+            }
+            else
+            {
+                new Thread(new Writer(p.getErrorStream(), logWriter)).start();
+
+                BufferedReader br
+                    = new BufferedReader(
+                        new InputStreamReader(p.getInputStream()));
+                String line;
+                while ((line = br.readLine()) != null)
+                    listener.lineRead(line);
+            }
+
+            waitFor(p, toString(command));
+        }
+        finally
+        {
+            releaseFfmpegThreads(threads);
+        }
+    }
+
+    /**
+     * Starts a command, logging it.
+     * @param command the command.
+     * @param saveLog whether to write the command to the log file.
+     * @return the started <tt>Process</tt>.
+     */
+    private static Process start(List<String> command, boolean saveLog)
+        throws IOException
+    {
+        String commandStr = toString(command);
         System.err.println("[EXEC] " + commandStr);
 
         ProcessBuilder pb = new ProcessBuilder(command);
@@ -164,43 +313,277 @@ public class Exec
             pb.environment().putAll(Config.ENV_VARIABLES);
         Process p = pb.start();
 
-        if (saveLog && logFile != null && logWriter != null)
-        {
+        FileWriter logWriter = getLogWriter();
+        if (saveLog && logWriter != null)
             logWriter.write("[EXEC] " + commandStr + '\n');
-            new Thread(new Writer(p.getInputStream())).start();
-            new Thread(new Writer(p.getErrorStream())).start();
+
+        return p;
+    }
+
+    /**
+     * Returns the number of threads which a command counts with towards
+     * {@link Config#MAX_FFMPEG_THREADS}.
+     * @param command the command.
+     * @return the largest <tt>-threads</tt> value of an ffmpeg command (or
+     * 1 if it has none), or 0 if the command is not ffmpeg.
+     */
+    public static int getFfmpegThreads(List<String> command)
+    {
+        if (command.isEmpty() || !command.get(0).equals(Config.FFMPEG))
+            return 0;
+
+        int threads = 1;
+        for (int i = 1; i + 1 < command.size(); i++)
+        {
+            if (command.get(i).equals("-threads"))
+            {
+                try
+                {
+                    threads = Math.max(threads,
+                                       Integer.parseInt(command.get(i + 1)));
+                }
+                catch (NumberFormatException nfe)
+                {
+                    // e.g. "auto"
+                }
+            }
         }
+        return threads;
+    }
 
+    /**
+     * Waits until the ffmpeg processes which are executing leave enough of
+     * {@link Config#MAX_FFMPEG_THREADS} for a new process, and reserves
+     * the threads for it. A process which needs more threads than the limit
+     * waits until no other process is executing. Requests are served in
+     * order.
+     * @param threads the number of threads which the process uses, or 0.
+     */
+    public static void acquireFfmpegThreads(int threads)
+        throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        ffmpegThreads.acquire(threads, Config.MAX_FFMPEG_THREADS);
+        ffmpegWaitTime.get()[0] += System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Returns the total time which the current thread has spent waiting in
+     * {@link #acquireFfmpegThreads(int)}, so that the time it takes to
+     * execute commands can be measured without it.
+     * @return the time in milliseconds.
+     */
+    public static long getFfmpegWaitTime()
+    {
+        return ffmpegWaitTime.get()[0];
+    }
+
+    /**
+     * Releases threads reserved with {@link #acquireFfmpegThreads(int)}.
+     * @param threads the number of threads to release.
+     */
+    public static void releaseFfmpegThreads(int threads)
+    {
+        ffmpegThreads.release(threads);
+    }
+
+    /**
+     * Waits until the encoders which are executing leave enough of
+     * {@link Config#MAX_ENCODER_THREADS} for a new encoder, and reserves the
+     * threads for it, like {@link #acquireFfmpegThreads(int)}. An encoder
+     * waits for sections, which are rendered by processes counted towards
+     * {@link Config#MAX_FFMPEG_THREADS}, so it must not hold threads from
+     * that budget.
+     * @param threads the number of threads which the encoder uses, or 0.
+     */
+    public static void acquireEncoderThreads(int threads)
+        throws InterruptedException
+    {
+        encoderThreads.acquire(threads, Config.MAX_ENCODER_THREADS);
+    }
+
+    /**
+     * Releases threads reserved with {@link #acquireEncoderThreads(int)}.
+     * @param threads the number of threads to release.
+     */
+    public static void releaseEncoderThreads(int threads)
+    {
+        encoderThreads.release(threads);
+    }
+
+    /**
+     * Executes a command and copies its <tt>stdout</tt> to <tt>out</tt>,
+     * saving its <tt>stderr</tt>. Does not close <tt>out</tt>.
+     */
+    public static void execList(OutputStream out, List<String> list)
+        throws IOException, InterruptedException
+    {
+        Process p = start(list, true);
+        new Thread(new Writer(p.getErrorStream(), getLogWriter())).start();
+
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[64 * 1024];
+        int len;
+        while ((len = in.read(buf)) != -1)
+            out.write(buf, 0, len);
+
+        waitFor(p, toString(list));
+    }
+
+    /**
+     * Starts a command without waiting for it to finish, saving its
+     * <tt>stdout</tt> and <tt>stderr</tt>. The caller is responsible for
+     * waiting for the process with {@link #waitFor(Process, String)}.
+     *
+     * Processes started with this method are not counted towards
+     * {@link Config#MAX_FFMPEG_THREADS} automatically. A caller which runs
+     * an encoder reserves its threads with
+     * {@link #acquireEncoderThreads(int)}, and releases them when the
+     * process exits.
+     * @return the started <tt>Process</tt>.
+     */
+    public static Process startList(List<String> list)
+        throws IOException
+    {
+        Process p = start(list, true);
+        FileWriter logWriter = getLogWriter();
+        new Thread(new Writer(p.getInputStream(), logWriter)).start();
+        new Thread(new Writer(p.getErrorStream(), logWriter)).start();
+
+        return p;
+    }
+
+    /**
+     * Waits for a process to finish.
+     * @param p the process to wait for.
+     * @param commandStr the command which started the process, used in
+     * case of failure.
+     * @throws CommandLineExecutionException if the process exits with a
+     * non-zero code.
+     */
+    public static void waitFor(Process p, String commandStr)
+        throws IOException, InterruptedException
+    {
         int exitCode = p.waitFor();
 
         if (exitCode != 0)
         {
+            FileWriter logWriter = getLogWriter();
             if (logWriter != null)
                 logWriter.flush();
             throw new CommandLineExecutionException(exitCode, commandStr);
         }
     }
 
+    /**
+     * Returns the string representation of a command, as used in the logs.
+     */
+    public static String toString(List<String> list)
+    {
+        String commandStr = "";
+        for (String s : list)
+            commandStr += s + " ";
+        return commandStr;
+    }
+
+    /**
+     * A number of threads which processes reserve before they execute.
+     */
+    private static class ThreadBudget
+    {
+        /** The number of threads reserved by the executing processes. */
+        private int threads = 0;
+
+        /**
+         * The requests which are waiting, in order. Used to serve them in
+         * order, so that a large request is not starved by small ones.
+         */
+        private final LinkedList<Object> queue = new LinkedList<Object>();
+
+        /**
+         * Waits until the executing processes leave enough of <tt>max</tt>
+         * threads for a new process, and reserves the threads for it. A
+         * process which needs more than <tt>max</tt> threads waits until no
+         * other process is executing.
+         * @param threads the number of threads which the process uses, or 0.
+         * @param max the maximum number of threads.
+         */
+        private void acquire(int threads, int max)
+            throws InterruptedException
+        {
+            if (threads <= 0)
+                return;
+
+            Object request = new Object();
+            synchronized (queue)
+            {
+                queue.add(request);
+                try
+                {
+                    while (queue.getFirst() != request
+                            || (this.threads > 0
+                                && this.threads + threads > max))
+                        queue.wait();
+                    this.threads += threads;
+                }
+                finally
+                {
+                    queue.remove(request);
+                    queue.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Releases threads reserved with {@link #acquire(int, int)}.
+         * @param threads the number of threads to release.
+         */
+        private void release(int threads)
+        {
+            if (threads <= 0)
+                return;
+
+            synchronized (queue)
+            {
+                this.threads -= threads;
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Receives the lines of the output of a command.
+     */
+    public interface LineListener
+    {
+        /**
+         * Called for each line of the output of a command.
+         * @param line the line, without the line terminator.
+         */
+        void lineRead(String line);
+    }
+
     /**
      * Implements a <tt>Runnable</tt> which saves an <tt>InputStream</tt>
-     * using {@link Exec#logWriter}.
+     * using a log writer.
      */
     private static class Writer
         implements Runnable
     {
         private InputStream stream;
 
-        private Writer(InputStream stream)
+        private FileWriter logWriter;
+
+        private Writer(InputStream stream, FileWriter logWriter)
         {
             this.stream = stream;
-
+            this.logWriter = logWriter;
         }
 
         @Override
         public void run()
         {
-            FileWriter logWriter = Exec.logWriter;
-            if (stream != null && logWriter != null)
+            if (stream != null)
             {
                 try
                 {
@@ -209,7 +592,8 @@ public class Exec
                     String line = null;
                     while ( (line = br.readLine()) != null)
                     {
-                        logWriter.write(line + '\n');
+                        if (logWriter != null)
+                            logWriter.write(line + '\n');
                     }
                 }
                 catch (IOException ioe)
@@ -0,0 +1,208 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Caches the information about video files (see {@link VideoFileInfo}) in a
+ * file, so that the files don't have to be probed again when a recording is
+ * processed again. An entry is only used if the size and modification time
+ * of the video file haven't changed. The cache is versioned, and a cache
+ * written by a version which probed the files differently (e.g. without the
+ * keyframes of files without cues) is discarded.
+ *
+ * @author Boris Grozev
+ */
+public class ProbeCache
+{
+    /**
+     * The version of the format and content of the cache. Needs to be
+     * incremented when the information read from the files changes.
+     */
+    private static final String VERSION = "2";
+
+    /** The name of the property which holds the version of the cache. */
+    private static final String VERSION_PROPERTY
+        = "jipopro.probe-cache.version";
+
+    /** The file in which the cache is saved. */
+    private final File file;
+
+    /**
+     * Maps the name of a video file to its size, modification time and
+     * information, separated by colons.
+     */
+    private final Properties entries = new Properties();
+
+    /** Whether there are entries which haven't been saved. */
+    private boolean modified = false;
+
+    /**
+     * Initializes a new <tt>ProbeCache</tt> instance, reading the entries
+     * saved in <tt>file</tt> (if it exists).
+     * @param file the file in which the cache is saved.
+     */
+    public ProbeCache(File file)
+    {
+        this.file = file;
+
+        if (file.exists())
+        {
+            try
+            {
+                InputStream in = new FileInputStream(file);
+                try
+                {
+                    entries.load(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Failed to read probe cache " + file
+                                       + ": " + ioe);
+                entries.clear();
+            }
+
+            if (!entries.isEmpty()
+                    && !VERSION.equals(entries.getProperty(VERSION_PROPERTY)))
+            {
+                System.err.println("Discarding probe cache " + file
+                                       + " from an older version.");
+                entries.clear();
+                modified = true;
+            }
+        }
+        entries.setProperty(VERSION_PROPERTY, VERSION);
+    }
+
+    /**
+     * Returns the cached information about a video file.
+     * @param name the name of the file in the cache.
+     * @param videoFile the file.
+     * @return the information about <tt>videoFile</tt>, or <tt>null</tt> if
+     * it isn't cached or the file has changed.
+     */
+    public synchronized VideoFileInfo get(String name, File videoFile)
+    {
+        String entry = entries.getProperty(name);
+        if (entry == null)
+            return null;
+
+        String[] fields = entry.split(":", -1);
+        try
+        {
+            if (fields.length != 6
+                    || Long.parseLong(fields[0]) != videoFile.length()
+                    || Long.parseLong(fields[1]) != videoFile.lastModified())
+                return null;
+
+            String[] keyframeFields
+                = fields[5].length() == 0
+                    ? new String[0]
+                    : fields[5].split(",");
+            long[] keyframes = new long[keyframeFields.length];
+            for (int i = 0; i < keyframes.length; i++)
+                keyframes[i] = Long.parseLong(keyframeFields[i]);
+
+            return new VideoFileInfo(Long.parseLong(fields[2]),
+                                     Integer.parseInt(fields[3]),
+                                     Integer.parseInt(fields[4]),
+                                     keyframes);
+        }
+        catch (NumberFormatException nfe)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the information about a video file to the cache.
+     * @param name the name of the file in the cache.
+     * @param videoFile the file.
+     * @param info the information about <tt>videoFile</tt>.
+     */
+    public synchronized void put(String name,
+                                 File videoFile,
+                                 VideoFileInfo info)
+    {
+        StringBuilder keyframes = new StringBuilder();
+        for (long keyframe : info.getKeyframes())
+        {
+            if (keyframes.length() > 0)
+                keyframes.append(',');
+            keyframes.append(keyframe);
+        }
+
+        entries.setProperty(name,
+                            videoFile.length()
+                                + ":" + videoFile.lastModified()
+                                + ":" + info.getDurationMillis()
+                                + ":" + info.getWidth()
+                                + ":" + info.getHeight()
+                                + ":" + keyframes);
+        modified = true;
+    }
+
+    /**
+     * Saves the cache, if it has been modified. Failures are logged, since
+     * the cache is only an optimization (e.g. the input directory may be
+     * read-only).
+     */
+    public synchronized void save()
+    {
+        if (!modified)
+            return;
+
+        // Write to a temporary file first, so that a crash while saving
+        // doesn't lose the whole cache.
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            OutputStream out = new FileOutputStream(tmp);
+            try
+            {
+                entries.store(out, "jipopro probe cache");
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Failed to rename " + tmp);
+            }
+            modified = false;
+        }
+        catch (IOException ioe)
+        {
+            System.err.println("Failed to save probe cache " + file + ": "
+                                   + ioe);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.util;
+
+/**
+ * Information about a video file which is needed before it is decoded.
+ *
+ * @author Boris Grozev
+ */
+public class VideoFileInfo
+{
+    /** The duration of the file in milliseconds. */
+    private final long durationMillis;
+
+    /** The width of the video, or -1 if unknown. */
+    private final int width;
+
+    /** The height of the video, or -1 if unknown. */
+    private final int height;
+
+    /**
+     * The times (in milliseconds) of the keyframes which are known, in
+     * order, e.g. from the cues of a WebM file or the starts of its
+     * clusters. May be empty.
+     */
+    private final long[] keyframes;
+
+    /**
+     * Initializes a new <tt>VideoFileInfo</tt> instance.
+     * @param durationMillis the duration of the file in milliseconds.
+     * @param width the width of the video, or -1.
+     * @param height the height of the video, or -1.
+     * @param keyframes the times of the known keyframes.
+     */
+    public VideoFileInfo(long durationMillis,
+                         int width,
+                         int height,
+                         long[] keyframes)
+    {
+        this.durationMillis = durationMillis;
+        this.width = width;
+        this.height = height;
+        this.keyframes = keyframes.clone();
+    }
+
+    /**
+     * Initializes a new <tt>VideoFileInfo</tt> instance for a file of which
+     * only the duration is known.
+     * @param durationMillis the duration of the file in milliseconds.
+     */
+    public VideoFileInfo(long durationMillis)
+    {
+        this(durationMillis, -1, -1, new long[0]);
+    }
+
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public long[] getKeyframes()
+    {
+        return keyframes.clone();
+    }
+}
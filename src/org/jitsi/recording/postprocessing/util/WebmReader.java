@@ -0,0 +1,744 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.recording.postprocessing.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Reads the duration of WebM (Matroska) files without executing external
+ * tools, together with the dimensions of the video and the times of the
+ * keyframes. The keyframes are taken from the cues, or, if the file has no
+ * cues, from the timecodes of the clusters (which start with a keyframe in
+ * the files written by the recorder).
+ *
+ * The duration is the timecode of the last block in the file, which is
+ * found by searching for the last cluster backwards from the end of the
+ * file. Only the EBML header, the segment information and the end of the
+ * file are read (using memory-mapped buffers), so the time it takes doesn't
+ * depend on the size of the file, apart from the scan of the clusters of
+ * files without cues, which reads only the header of each cluster. The
+ * files written by the recorder may be truncated if the recorder didn't stop
+ * cleanly, so incomplete elements at the end are ignored.
+ *
+ * The structure of the parts which are read is validated, so that files
+ * which can not be decoded are rejected early.
+ *
+ * @author Boris Grozev
+ */
+public class WebmReader
+{
+    private static final int EBML_ID = 0x1A45DFA3;
+    private static final int DOC_TYPE_ID = 0x4282;
+    private static final int SEGMENT_ID = 0x18538067;
+    private static final int INFO_ID = 0x1549A966;
+    private static final int TIMECODE_SCALE_ID = 0x2AD7B1;
+    private static final int CLUSTER_ID = 0x1F43B675;
+    private static final int TIMECODE_ID = 0xE7;
+    private static final int SIMPLE_BLOCK_ID = 0xA3;
+    private static final int BLOCK_GROUP_ID = 0xA0;
+    private static final int BLOCK_ID = 0xA1;
+    private static final int TRACKS_ID = 0x1654AE6B;
+    private static final int TRACK_ENTRY_ID = 0xAE;
+    private static final int VIDEO_ID = 0xE0;
+    private static final int PIXEL_WIDTH_ID = 0xB0;
+    private static final int PIXEL_HEIGHT_ID = 0xBA;
+    private static final int SEEK_HEAD_ID = 0x114D9B74;
+    private static final int SEEK_ID = 0x4DBB;
+    private static final int SEEK_ID_ID = 0x53AB;
+    private static final int SEEK_POSITION_ID = 0x53AC;
+    private static final int CUES_ID = 0x1C53BB6B;
+    private static final int CUE_POINT_ID = 0xBB;
+    private static final int CUE_TIME_ID = 0xB3;
+
+    /**
+     * The value returned by {@link Parser#readSize()} for elements with an
+     * unknown size.
+     */
+    private static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * The default timecode scale, in nanoseconds.
+     */
+    private static final long DEFAULT_TIMECODE_SCALE = 1000000;
+
+    /**
+     * The number of bytes at the start of the file in which the headers are
+     * searched for.
+     */
+    private static final int HEADER_WINDOW = 1024 * 1024;
+
+    /**
+     * The number of bytes at the end of the file in which the last cluster is
+     * first searched for. If no cluster is found, the window is enlarged.
+     */
+    private static final int TAIL_WINDOW = 1024 * 1024;
+
+    /**
+     * The maximum number of bytes read from the cues.
+     */
+    private static final int MAX_CUES_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The number of bytes read at the start of each cluster when scanning
+     * the clusters, enough for the header of the cluster and its timecode.
+     */
+    private static final int CLUSTER_HEADER_SIZE = 32;
+
+    /**
+     * Returns the duration of a WebM file.
+     * @param file the file.
+     * @return the duration of <tt>file</tt> in milliseconds.
+     * @throws IOException if <tt>file</tt> can not be read, or is not a valid
+     * WebM file, or contains no blocks.
+     */
+    public static long getDurationMillis(File file)
+        throws IOException
+    {
+        return read(file).getDurationMillis();
+    }
+
+    /**
+     * Reads the duration, the dimensions of the video and the times of the
+     * keyframes listed in the cues of a WebM file.
+     * @param file the file.
+     * @return the information read from <tt>file</tt>.
+     * @throws IOException if <tt>file</tt> can not be read, or is not a valid
+     * WebM file, or contains no blocks.
+     */
+    public static VideoFileInfo read(File file)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            return read(raf.getChannel());
+        }
+        catch (IndexOutOfBoundsException ioobe)
+        {
+            throw new IOException("Truncated headers.");
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Implements {@link #read(File)}.
+     */
+    private static VideoFileInfo read(FileChannel channel)
+        throws IOException
+    {
+        long fileSize = channel.size();
+        Parser p = new Parser(
+                channel.map(FileChannel.MapMode.READ_ONLY,
+                            0, Math.min(fileSize, HEADER_WINDOW)));
+
+        // The EBML header.
+        if (p.readId() != EBML_ID)
+            throw new IOException("Not an EBML file.");
+        long size = p.readSize();
+        if (size == UNKNOWN_SIZE || size > p.remaining())
+            throw new IOException("Invalid EBML header.");
+        int end = p.pos + (int) size;
+        String docType = null;
+        while (p.pos < end)
+        {
+            int id = p.readId();
+            long elementSize = p.readSize();
+            if (elementSize == UNKNOWN_SIZE || p.pos + elementSize > end)
+                throw new IOException("Invalid EBML header.");
+            if (id == DOC_TYPE_ID)
+                docType = p.readString((int) elementSize);
+            else
+                p.pos += (int) elementSize;
+        }
+        if (!"webm".equals(docType) && !"matroska".equals(docType))
+            throw new IOException("Unsupported document type: " + docType);
+
+        // The segment. Its size is unknown if the recorder didn't finish
+        // writing the file.
+        if (p.readId() != SEGMENT_ID)
+            throw new IOException("No segment.");
+        p.readSize();
+        long segmentStart = p.pos;
+
+        // The elements before the first cluster.
+        Segment segment = new Segment();
+        long firstClusterPosition = -1;
+        while (p.remaining() > 0)
+        {
+            int elementStart = p.pos;
+            int id = p.readId();
+            long elementSize = p.readSize();
+            if (id == CLUSTER_ID)
+            {
+                firstClusterPosition = elementStart;
+                break;
+            }
+            if (elementSize == UNKNOWN_SIZE)
+                throw new IOException("Element with an unknown size in the"
+                                          + " segment: " + id);
+            if (elementSize > p.remaining())
+                break; // the rest is outside of the window
+
+            int elementEnd = p.pos + (int) elementSize;
+            if (id == INFO_ID)
+                readInfo(p, elementEnd, segment);
+            else if (id == TRACKS_ID)
+                readTracks(p, elementEnd, segment);
+            else if (id == SEEK_HEAD_ID)
+                readSeekHead(p, elementEnd, segment);
+            else if (id == CUES_ID)
+                segment.cueTimes = readCues(p, elementEnd);
+            p.pos = elementEnd;
+        }
+        if (segment.timecodeScale <= 0)
+        {
+            throw new IOException("Invalid timecode scale: "
+                                      + segment.timecodeScale);
+        }
+
+        // The cues are usually at the end of the file (if the recorder
+        // wrote them at all).
+        if (segment.cueTimes == null
+                && segment.cuesPosition >= 0
+                && segmentStart + segment.cuesPosition < fileSize)
+        {
+            segment.cueTimes
+                = readCues(channel, segmentStart + segment.cuesPosition);
+        }
+
+        if (segment.cueTimes == null && firstClusterPosition >= 0)
+        {
+            segment.cueTimes
+                = readClusterTimecodes(channel, firstClusterPosition);
+        }
+
+        long lastTimecode
+            = findLastBlockTimecode(channel, segmentStart, fileSize);
+
+        long[] keyframes
+            = new long[segment.cueTimes == null ? 0 : segment.cueTimes.size()];
+        for (int i = 0; i < keyframes.length; i++)
+        {
+            keyframes[i] = segment.cueTimes.get(i) * segment.timecodeScale
+                / 1000000;
+        }
+
+        return new VideoFileInfo(
+                lastTimecode * segment.timecodeScale / 1000000,
+                segment.width,
+                segment.height,
+                keyframes);
+    }
+
+    /**
+     * Reads the timecodes of the clusters, skipping from the header of one
+     * cluster to the next. The scan stops at the first cluster with an
+     * unknown size (which can't be skipped) or at an invalid or truncated
+     * element.
+     * @param channel the file.
+     * @param position the position of the first cluster.
+     * @return the timecodes of the clusters, in order.
+     */
+    private static List<Long> readClusterTimecodes(FileChannel channel,
+                                                   long position)
+        throws IOException
+    {
+        List<Long> timecodes = new ArrayList<Long>();
+        ByteBuffer buf = ByteBuffer.allocate(CLUSTER_HEADER_SIZE);
+        long fileSize = channel.size();
+
+        while (position < fileSize)
+        {
+            buf.clear();
+            if (channel.read(buf, position) <= 0)
+                break;
+            buf.flip();
+
+            Parser p = new Parser(buf);
+            try
+            {
+                int id = p.readId();
+                long size = p.readSize();
+                if (id == CLUSTER_ID)
+                {
+                    // The timecode is the first element of a cluster.
+                    int headerSize = p.pos;
+                    if (p.readId() != TIMECODE_ID)
+                        break;
+                    long timecodeSize = p.readSize();
+                    timecodes.add(p.readUnsigned((int) timecodeSize));
+                    if (size == UNKNOWN_SIZE)
+                        break;
+                    position += headerSize + size;
+                }
+                else
+                {
+                    // E.g. cues or tags between the clusters.
+                    if (size == UNKNOWN_SIZE)
+                        break;
+                    position += p.pos + size;
+                }
+            }
+            catch (IOException ioe)
+            {
+                break;
+            }
+            catch (IndexOutOfBoundsException ioobe)
+            {
+                break;
+            }
+        }
+
+        return timecodes;
+    }
+
+    /**
+     * Finds the timecode of the last block in a file, by searching for the
+     * last cluster starting at the end of the file. The window is enlarged
+     * until a cluster is found, scanning only the part which hasn't been
+     * scanned.
+     * @param channel the file.
+     * @param segmentStart the offset of the data of the segment.
+     * @param fileSize the size of the file.
+     * @return the timecode of the last block in the file.
+     * @throws IOException if there are no complete clusters.
+     */
+    private static long findLastBlockTimecode(FileChannel channel,
+                                              long segmentStart,
+                                              long fileSize)
+        throws IOException
+    {
+        long windowStart = fileSize;
+        long windowSize = TAIL_WINDOW;
+        while (windowStart > segmentStart)
+        {
+            long previousStart = windowStart;
+            windowStart
+                = Math.max(segmentStart,
+                           fileSize - Math.min(windowSize, Integer.MAX_VALUE));
+            if (windowStart == previousStart)
+                break; // the window can't be enlarged any more
+
+            ByteBuffer buf
+                = channel.map(FileChannel.MapMode.READ_ONLY,
+                              windowStart, fileSize - windowStart);
+            int scanFrom = (int) Math.min(previousStart - windowStart,
+                                          buf.limit() - 4);
+            for (int i = scanFrom; i >= 0; i--)
+            {
+                if (buf.getInt(i) == CLUSTER_ID)
+                {
+                    long timecode = getLastBlockTimecode(buf, i + 4);
+                    if (timecode >= 0)
+                        return timecode;
+                }
+            }
+            windowSize *= 4;
+        }
+
+        throw new IOException("No complete clusters.");
+    }
+
+    /**
+     * Reads the segment information (the timecode scale).
+     */
+    private static void readInfo(Parser p, int end, Segment segment)
+        throws IOException
+    {
+        while (p.pos < end)
+        {
+            int id = p.readId();
+            long size = p.readSize();
+            if (size == UNKNOWN_SIZE || p.pos + size > end)
+                throw new IOException("Invalid segment information.");
+            if (id == TIMECODE_SCALE_ID)
+                segment.timecodeScale = p.readUnsigned((int) size);
+            else
+                p.pos += (int) size;
+        }
+    }
+
+    /**
+     * Reads the dimensions of the first video track.
+     */
+    private static void readTracks(Parser p, int end, Segment segment)
+        throws IOException
+    {
+        while (p.pos < end)
+        {
+            int id = p.readId();
+            long size = p.readSize();
+            if (size == UNKNOWN_SIZE || p.pos + size > end)
+                throw new IOException("Invalid tracks.");
+            int trackEnd = p.pos + (int) size;
+
+            if (id == TRACK_ENTRY_ID && segment.width < 0)
+            {
+                while (p.pos < trackEnd)
+                {
+                    int trackId = p.readId();
+                    long trackSize = p.readSize();
+                    if (trackSize == UNKNOWN_SIZE
+                            || p.pos + trackSize > trackEnd)
+                        throw new IOException("Invalid track entry.");
+                    int videoEnd = p.pos + (int) trackSize;
+
+                    if (trackId == VIDEO_ID)
+                    {
+                        while (p.pos < videoEnd)
+                        {
+                            int videoId = p.readId();
+                            long videoSize = p.readSize();
+                            if (videoSize == UNKNOWN_SIZE
+                                    || p.pos + videoSize > videoEnd)
+                                throw new IOException("Invalid video track.");
+                            if (videoId == PIXEL_WIDTH_ID)
+                                segment.width
+                                    = (int) p.readUnsigned((int) videoSize);
+                            else if (videoId == PIXEL_HEIGHT_ID)
+                                segment.height
+                                    = (int) p.readUnsigned((int) videoSize);
+                            else
+                                p.pos += (int) videoSize;
+                        }
+                    }
+                    p.pos = videoEnd;
+                }
+            }
+            p.pos = trackEnd;
+        }
+    }
+
+    /**
+     * Reads the position of the cues (relative to the data of the segment)
+     * from a seek head.
+     */
+    private static void readSeekHead(Parser p, int end, Segment segment)
+        throws IOException
+    {
+        while (p.pos < end)
+        {
+            int id = p.readId();
+            long size = p.readSize();
+            if (size == UNKNOWN_SIZE || p.pos + size > end)
+                throw new IOException("Invalid seek head.");
+            int seekEnd = p.pos + (int) size;
+
+            if (id == SEEK_ID)
+            {
+                long seekId = -1, seekPosition = -1;
+                while (p.pos < seekEnd)
+                {
+                    int seekElementId = p.readId();
+                    long seekElementSize = p.readSize();
+                    if (seekElementSize == UNKNOWN_SIZE
+                            || seekElementSize > 8
+                            || p.pos + seekElementSize > seekEnd)
+                        throw new IOException("Invalid seek entry.");
+                    if (seekElementId == SEEK_ID_ID)
+                        seekId = p.readUnsigned((int) seekElementSize);
+                    else if (seekElementId == SEEK_POSITION_ID)
+                        seekPosition = p.readUnsigned((int) seekElementSize);
+                    else
+                        p.pos += (int) seekElementSize;
+                }
+                if (seekId == CUES_ID)
+                    segment.cuesPosition = seekPosition;
+            }
+            p.pos = seekEnd;
+        }
+    }
+
+    /**
+     * Reads the cues at a specific position in a file.
+     * @return the times of the cue points, or <tt>null</tt> if there are no
+     * valid cues at <tt>position</tt>.
+     */
+    private static List<Long> readCues(FileChannel channel, long position)
+        throws IOException
+    {
+        long size = Math.min(channel.size() - position, MAX_CUES_SIZE);
+        Parser p = new Parser(
+                channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+        try
+        {
+            if (p.readId() != CUES_ID)
+                return null;
+            long cuesSize = p.readSize();
+            if (cuesSize == UNKNOWN_SIZE || cuesSize > p.remaining())
+                return null;
+            return readCues(p, p.pos + (int) cuesSize);
+        }
+        catch (IOException ioe)
+        {
+            // The cues are optional, so they are ignored if broken.
+            return null;
+        }
+        catch (IndexOutOfBoundsException ioobe)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the times of the cue points in a <tt>Cues</tt> element.
+     */
+    private static List<Long> readCues(Parser p, int end)
+        throws IOException
+    {
+        List<Long> cueTimes = new ArrayList<Long>();
+        while (p.pos < end)
+        {
+            int id = p.readId();
+            long size = p.readSize();
+            if (size == UNKNOWN_SIZE || p.pos + size > end)
+                throw new IOException("Invalid cues.");
+            int cueEnd = p.pos + (int) size;
+
+            if (id == CUE_POINT_ID)
+            {
+                while (p.pos < cueEnd)
+                {
+                    int cueId = p.readId();
+                    long cueSize = p.readSize();
+                    if (cueSize == UNKNOWN_SIZE || p.pos + cueSize > cueEnd)
+                        throw new IOException("Invalid cue point.");
+                    if (cueId == CUE_TIME_ID && cueSize <= 8)
+                        cueTimes.add(p.readUnsigned((int) cueSize));
+                    else
+                        p.pos += (int) cueSize;
+                }
+            }
+            p.pos = cueEnd;
+        }
+        return cueTimes;
+    }
+
+    /**
+     * Reads a cluster and returns the timecode of its last complete block.
+     * @param buf the buffer which contains the cluster.
+     * @param pos the position in <tt>buf</tt> of the size of the cluster
+     * (just after its ID).
+     * @return the timecode of the last complete block in the cluster, or -1
+     * if there is no cluster at <tt>pos</tt> or it has no complete blocks.
+     */
+    private static long getLastBlockTimecode(ByteBuffer buf, int pos)
+    {
+        Parser p = new Parser(buf);
+        p.pos = pos;
+        try
+        {
+            long size = p.readSize();
+            int end
+                = size == UNKNOWN_SIZE || size > p.remaining()
+                    ? buf.limit()
+                    : p.pos + (int) size;
+
+            // The timecode is the first element of a cluster, which also
+            // distinguishes clusters from matching bytes in other elements.
+            if (p.readId() != TIMECODE_ID)
+                return -1;
+            long timecodeSize = p.readSize();
+            if (timecodeSize < 1 || timecodeSize > 8
+                    || p.pos + timecodeSize > end)
+                return -1;
+            long clusterTimecode = p.readUnsigned((int) timecodeSize);
+
+            long last = -1;
+            while (p.pos < end)
+            {
+                int id = p.readId();
+                long elementSize = p.readSize();
+                if (id == CLUSTER_ID
+                        || elementSize == UNKNOWN_SIZE
+                        || p.pos + elementSize > end)
+                    break; // the next cluster, or a truncated element
+                int elementEnd = p.pos + (int) elementSize;
+
+                if (id == SIMPLE_BLOCK_ID)
+                {
+                    last = Math.max(last,
+                                    clusterTimecode + p.readBlockTimecode());
+                }
+                else if (id == BLOCK_GROUP_ID)
+                {
+                    while (p.pos < elementEnd)
+                    {
+                        int groupId = p.readId();
+                        long groupSize = p.readSize();
+                        if (groupSize == UNKNOWN_SIZE
+                                || p.pos + groupSize > elementEnd)
+                            return -1;
+                        if (groupId == BLOCK_ID)
+                        {
+                            last = Math.max(last,
+                                            clusterTimecode
+                                                + p.readBlockTimecode());
+                        }
+                        p.pos += (int) groupSize;
+                    }
+                }
+                p.pos = elementEnd;
+            }
+            return last;
+        }
+        catch (IOException ioe)
+        {
+            return -1;
+        }
+        catch (IndexOutOfBoundsException ioobe)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * The information read from the elements of a segment which precede the
+     * first cluster.
+     */
+    private static class Segment
+    {
+        private long timecodeScale = DEFAULT_TIMECODE_SCALE;
+        private int width = -1;
+        private int height = -1;
+
+        /**
+         * The position of the cues relative to the data of the segment, or
+         * -1 if unknown.
+         */
+        private long cuesPosition = -1;
+
+        /**
+         * The times of the cue points (or of the clusters, if there are no
+         * cues), or <tt>null</tt> if they haven't been read.
+         */
+        private List<Long> cueTimes;
+    }
+
+    /**
+     * Reads EBML elements from a <tt>ByteBuffer</tt>. Reading past the end
+     * of the buffer throws an <tt>IndexOutOfBoundsException</tt>.
+     */
+    private static class Parser
+    {
+        private final ByteBuffer buf;
+
+        /**
+         * The position of the next byte to read.
+         */
+        private int pos = 0;
+
+        private Parser(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        private int remaining()
+        {
+            return buf.limit() - pos;
+        }
+
+        /**
+         * Reads an element ID, including its length marker.
+         */
+        private int readId()
+            throws IOException
+        {
+            int first = buf.get(pos) & 0xFF;
+            int length = Integer.numberOfLeadingZeros(first) - 23;
+            if (length < 1 || length > 4)
+                throw new IOException("Invalid element ID at " + pos);
+
+            int id = 0;
+            for (int i = 0; i < length; i++)
+                id = (id << 8) | (buf.get(pos + i) & 0xFF);
+            pos += length;
+            return id;
+        }
+
+        /**
+         * Reads an element size (or another variable-length integer).
+         * @return the size, or {@link #UNKNOWN_SIZE}.
+         */
+        private long readSize()
+            throws IOException
+        {
+            int first = buf.get(pos) & 0xFF;
+            int length = Integer.numberOfLeadingZeros(first) - 23;
+            if (length < 1 || length > 8)
+                throw new IOException("Invalid element size at " + pos);
+
+            long size = first & (0xFF >> length);
+            boolean unknown = size == (0xFF >> length);
+            for (int i = 1; i < length; i++)
+            {
+                int b = buf.get(pos + i) & 0xFF;
+                size = (size << 8) | b;
+                unknown &= b == 0xFF;
+            }
+            pos += length;
+            return unknown ? UNKNOWN_SIZE : size;
+        }
+
+        private long readUnsigned(int length)
+        {
+            long value = 0;
+            for (int i = 0; i < length; i++)
+                value = (value << 8) | (buf.get(pos + i) & 0xFF);
+            pos += length;
+            return value;
+        }
+
+        private String readString(int length)
+            throws IOException
+        {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+                bytes[i] = buf.get(pos + i);
+            pos += length;
+
+            // Strings may be padded with zeros.
+            int end = 0;
+            while (end < length && bytes[end] != 0)
+                end++;
+            return new String(bytes, 0, end, "US-ASCII");
+        }
+
+        /**
+         * Reads the timecode of a block (relative to its cluster), without
+         * moving past the block.
+         */
+        private long readBlockTimecode()
+            throws IOException
+        {
+            int start = pos;
+            readSize(); // the track number
+            long timecode = buf.getShort(pos);
+            pos = start;
+            return timecode;
+        }
+    }
+}
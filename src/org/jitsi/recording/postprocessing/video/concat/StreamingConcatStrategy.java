@@ -0,0 +1,309 @@
+/*
+/*
+ * Jipopro, the Jitsi Post-Processing application for recorded conferences.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.recording.postprocessing.video.concat;
+
+import java.io.*;
+import java.util.*;
+//Disambiguation
+import java.util.List;
+
+import org.jitsi.recording.postprocessing.*;
+import org.jitsi.recording.postprocessing.util.*;
+
+/**
+ * A {@link ConcatStrategy} which encodes the sections while they are still
+ * being processed. A single long-running ffmpeg process encodes the final
+ * video from an MJPEG stream on its <tt>stdin</tt>. As soon as the next
+ * section (in timeline order) is complete, its frames are remuxed into that
+ * stream, so the encoding overlaps with the processing of the remaining
+ * sections.
+ *
+ * Usage: call {@link #start(String, String)} before processing the
+ * sections, {@link #sectionCompleted(int)} when each section's file is
+ * ready (or its processing has failed), and {@link #concatFiles(String,
+ * String)} once all sections have been processed. If {@link
+ * #concatFiles(String, String)} is called without a previous call to
+ * {@link #start(String, String)}, all the files in the source directory are
+ * encoded, similarly to {@link SimpleConcatStrategy}.
+ *
+ * @author Boris Grozev
+ */
+public class StreamingConcatStrategy
+    implements ConcatStrategy
+{
+    /**
+     * The sequence numbers of the sections which have completed, but have
+     * not been fed to the encoder yet.
+     */
+    private final Set<Integer> completed = new HashSet<Integer>();
+
+    /** The largest sequence number of a completed section. */
+    private int lastCompleted = -1;
+
+    /** Whether all the sections have completed. */
+    private boolean finished = false;
+
+    /** Whether the encoding has been aborted. */
+    private boolean aborted = false;
+
+    /** The directory containing the section files. */
+    private String sourceDir;
+
+    /** The encoding process. */
+    private Process encoder;
+
+    /** The command which started {@link #encoder}. */
+    private String encoderCommand;
+
+    /**
+     * The number of threads of {@link #encoder}, which are reserved from
+     * {@link Config#MAX_ENCODER_THREADS} while it is running.
+     */
+    private int encoderThreads;
+
+    /** The thread which feeds the completed sections to the encoder. */
+    private Thread feeder;
+
+    /** The error which stopped {@link #feeder}, if any. */
+    private Exception feederError;
+
+    /**
+     * Starts the encoder. Sections are fed to it as they are completed.
+     * Waits until the threads of the encoder can be taken from the encoder
+     * threads shared by all jobs (see {@link Exec#acquireEncoderThreads(int)}).
+     * They are not taken from the threads of the tasks, because the encoder
+     * waits for the sections which the tasks render.
+     * @param sourceDir the directory containing the section files.
+     * @param outputFilename the name of the output video file.
+     */
+    public synchronized void start(String sourceDir, String outputFilename)
+        throws IOException,
+               InterruptedException
+    {
+        if (encoder != null)
+            return;
+
+        this.sourceDir = sourceDir.isEmpty() ? "." : sourceDir;
+
+        List<String> exec = new LinkedList<String>();
+        exec.add(Config.FFMPEG);
+        exec.add("-y");
+        exec.add("-nostdin");
+        exec.add("-f");
+        exec.add("mjpeg");
+        exec.add("-framerate");
+        exec.add(Integer.toString(Config.OUTPUT_FPS));
+        exec.add("-i");
+        exec.add("pipe:0");
+        // TODO support Config.OUTPUT_FORMAT
+        exec.add("-c:v");
+        exec.add("libvpx");
+        exec.add("-cpu-used");
+        exec.add("16");
+        exec.add("-threads");
+        exec.add(Integer.toString(Config.FFMPEG_THREADS));
+        exec.add("-b:v");
+        exec.add("1M");
+        exec.add(outputFilename);
+
+        encoderCommand = Exec.toString(exec);
+        encoderThreads = Exec.getFfmpegThreads(exec);
+        Exec.acquireEncoderThreads(encoderThreads);
+        try
+        {
+            encoder = Exec.startList(exec);
+        }
+        catch (IOException ioe)
+        {
+            Exec.releaseEncoderThreads(encoderThreads);
+            throw ioe;
+        }
+
+        feeder = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                feed();
+            }
+        }, "StreamingConcatStrategy feeder");
+        feeder.start();
+    }
+
+    /**
+     * Notifies this instance that the processing of a section has completed
+     * (successfully or not).
+     * @param sequenceNumber the sequence number of the section.
+     */
+    public synchronized void sectionCompleted(int sequenceNumber)
+    {
+        completed.add(sequenceNumber);
+        lastCompleted = Math.max(lastCompleted, sequenceNumber);
+        notifyAll();
+    }
+
+    /**
+     * Stops the encoder without waiting for the remaining sections, e.g.
+     * because the processing has been cancelled. The output file is left
+     * incomplete.
+     */
+    public synchronized void abort()
+    {
+        if (encoder == null || aborted)
+            return;
+
+        aborted = true;
+        finished = true;
+        notifyAll();
+        encoder.destroy();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Waits for all completed sections to be encoded, and for the encoder to
+     * finish.
+     */
+    @Override
+    public void concatFiles(String sourceDir, String outputFilename)
+        throws IOException, InterruptedException
+    {
+        Thread feeder;
+        synchronized (this)
+        {
+            if (encoder == null)
+            {
+                start(sourceDir, outputFilename);
+
+                /*
+                 * ASSUMPTION:
+                 * The files to be concatenated are named "0_i.mov" with i
+                 * starting from zero, and *not containing leading zeros*.
+                 */
+                int filesNum = (new File(this.sourceDir)).listFiles().length;
+                for (int i = 0; i < filesNum; i++)
+                    sectionCompleted(i);
+            }
+
+            finished = true;
+            notifyAll();
+            feeder = this.feeder;
+        }
+
+        feeder.join();
+        Exec.waitFor(encoder, encoderCommand);
+
+        if (feederError != null)
+            throw new IOException("Failed to feed sections to the encoder: "
+                                      + feederError);
+    }
+
+    /**
+     * Feeds the completed sections to the encoder, in order, and closes the
+     * encoder's input after the last section. Releases the threads of the
+     * encoder once it exits.
+     */
+    private void feed()
+    {
+        OutputStream out
+            = new BufferedOutputStream(encoder.getOutputStream());
+
+        try
+        {
+            for (int next = 0;; next++)
+            {
+                synchronized (this)
+                {
+                    while (!completed.contains(next) && !finished)
+                        wait();
+
+                    if (aborted)
+                        break;
+
+                    if (!completed.remove(next))
+                    {
+                        // All sections have completed, but this one was
+                        // never reported.
+                        if (next > lastCompleted)
+                            break;
+                        System.err.println("Section " + next + " is missing,"
+                                               + " not including it.");
+                        continue;
+                    }
+                }
+
+                File section = new File(sourceDir + "/0_" + next + ".mov");
+                if (!section.exists())
+                {
+                    System.err.println("Section file " + section + " does"
+                                           + " not exist, not including it.");
+                    continue;
+                }
+
+                List<String> exec = new LinkedList<String>();
+                exec.add(Config.FFMPEG);
+                exec.add("-nostdin");
+                exec.add("-i");
+                exec.add(section.getPath());
+                exec.add("-c");
+                exec.add("copy");
+                exec.add("-f");
+                exec.add("mjpeg");
+                exec.add("pipe:1");
+                Exec.execList(out, exec);
+            }
+        }
+        catch (Exception e)
+        {
+            feederError = e;
+            e.printStackTrace();
+        }
+        finally
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Failed to close encoder input: " + ioe);
+            }
+
+            // The exit code is checked in concatFiles().
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    encoder.waitFor();
+                    break;
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            Exec.releaseEncoderThreads(encoderThreads);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
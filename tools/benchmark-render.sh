@@ -0,0 +1,31 @@
+#!/bin/sh
+
+#renders the recording in $1 twice: once with the per-section pipeline and
+#once with the single-process timeline renderer, and prints the timings of
+#both runs.
+#output goes in $2/sections and $2/timeline. $2 is created if needed.
+
+#Note: both $1 and $2 have to be absolute. Run from the jipopro directory,
+#after 'ant rebuild'.
+
+resources="`pwd`/resources"
+
+cp="`pwd`/jipopro.jar"
+for i in `pwd`/lib/*; do cp=${cp}:$i; done
+
+for mode in sections timeline; do
+    out="$2/$mode"
+    mkdir -p $out/sections/
+    mkdir -p $out/temp/lower-third
+
+    (cd $1 &&
+    java -cp $cp org.jitsi.recording.postprocessing.PostProcessing --in="$1" --out="$out" --resources="$resources" --render-mode=$mode 2> $out/benchmark.log
+    )
+done
+
+for mode in sections timeline; do
+    echo "== $mode"
+    grep -E '^\[TIME\] |All done' $2/$mode/benchmark.log
+    echo "Processes spawned: `grep -c '^\[EXEC\]' $2/$mode/benchmark.log`"
+    echo "MJPEG section intermediates: `grep -c '^\[EXEC\].*/sections/0_' $2/$mode/benchmark.log`"
+done